@@ -0,0 +1,34 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Default decoder for FrameBenchmark, which only runs the YUV to ARGB
+ * conversion a bitmap-based detector would need and finds nothing. Measures
+ * the plugin's own share of the frame pipeline when no real decoder is on the
+ * classpath.
+ */
+public class ConversionOnlyDecoder implements FrameDecoder {
+    private final YuvConverter converter = new YuvConverter(1);
+    private int[] pixels = new int[0];
+
+    @Override
+    public List<String> decode(ByteBuffer data, int format, int width, int height, int stride, int rotation) {
+        if (format != FrameRecorder.FORMAT_NV21) {
+            return Collections.emptyList();
+        }
+        if (pixels.length < width * height) {
+            pixels = new int[width * height];
+        }
+
+        int chroma = stride * height;
+        ByteBuffer v = data.duplicate();
+        v.position(chroma);
+        ByteBuffer u = data.duplicate();
+        u.position(chroma + 1);
+        converter.convertYuv420(data, stride, u.slice(), v.slice(), stride, 2, width, height, 1, rotation, pixels);
+        return Collections.emptyList();
+    }
+}
@@ -0,0 +1,253 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.EncodeHintType;
+import com.google.zxing.MultiFormatWriter;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.datamatrix.encoder.SymbolShapeHint;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders the frames described by the corpus file into NV21 recordings, one
+ * per entry, that FrameBenchmark then replays. Symbols are encoded with
+ * zxing's writers. Rendering is deterministic, so
+ * the corpus is checked in as its description rather than as frame data.
+ * <p>
+ * Each line of the corpus file is tab separated: name, format, width, height,
+ * condition and the values to encode separated by '|'. Conditions are clean,
+ * blur, lowlight, skew and multi (every value side by side). An entry with
+ * condition recorded isn't rendered; its frames come from name.qrfr next to
+ * the corpus file, as written on a device by FrameRecorder.
+ */
+class CorpusGenerator {
+    private static final int PAPER = 235, INK = 25, BACKGROUND = 150;
+
+    static class Entry {
+        final String name, format, condition;
+        final int width, height;
+        final List<String> values;
+
+        Entry(String name, String format, int width, int height, String condition, List<String> values) {
+            this.name = name;
+            this.format = format;
+            this.width = width;
+            this.height = height;
+            this.condition = condition;
+            this.values = values;
+        }
+    }
+
+    static List<Entry> read(File corpus) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(corpus))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty() || line.startsWith("#")) continue;
+                String[] fields = line.split("\t");
+                if (fields.length != 6) {
+                    throw new IOException("Expected 6 tab separated fields: " + line);
+                }
+                entries.add(new Entry(fields[0], fields[1], Integer.parseInt(fields[2]), Integer.parseInt(fields[3]),
+                    fields[4], Arrays.asList(fields[5].split("\\|"))));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the recording holding the entry's frames, rendering it into
+     * outputDir first if it isn't a recorded entry.
+     */
+    static File recording(Entry entry, File corpusDir, File outputDir) throws IOException {
+        if (entry.condition.equals("recorded")) {
+            return new File(corpusDir, entry.name + ".qrfr");
+        }
+        File file = new File(outputDir, entry.name + ".qrfr");
+        byte[] nv21 = render(entry);
+        FrameRecorder recorder = new FrameRecorder(file, new FrameRecorder.Logger() {
+            @Override
+            public void warn(String message, Throwable error) {
+                System.err.println(message + (error == null ? "" : ": " + error));
+            }
+        });
+        recorder.record(nv21, 0, FrameRecorder.FORMAT_NV21, entry.width, entry.height, entry.width, 0);
+        recorder.close();
+        try {
+            if (!recorder.awaitClosed(30, TimeUnit.SECONDS)) {
+                throw new IOException("Timed out writing " + file);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted writing " + file);
+        }
+        return file;
+    }
+
+    static byte[] render(Entry entry) {
+        int width = entry.width, height = entry.height;
+        int[] luma = new int[width * height];
+        Arrays.fill(luma, BACKGROUND);
+
+        int count = entry.condition.equals("multi") ? entry.values.size() : 1;
+        int slotWidth = width / count;
+        for (int i = 0; i < count; ++i) {
+            draw(luma, width, height, entry.format, entry.values.get(i), i * slotWidth, slotWidth);
+        }
+
+        // seeded by name so the same entry always renders the same frame
+        Random random = new Random(entry.name.hashCode());
+        switch (entry.condition) {
+            case "blur":
+                int radius = Math.max(1, width / 320);
+                boxBlur(luma, width, height, radius);
+                boxBlur(luma, width, height, radius);
+                break;
+            case "lowlight":
+                for (int i = 0; i < luma.length; ++i) {
+                    luma[i] = clamp((int) (16 + (luma[i] - 16) * 0.2 + random.nextGaussian() * 3));
+                }
+                break;
+            case "skew":
+                luma = skew(luma, width, height, Math.toRadians(12), 0.15);
+                break;
+            case "clean":
+            case "multi":
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown condition " + entry.condition);
+        }
+
+        byte[] nv21 = new byte[width * height * 3 / 2];
+        for (int i = 0; i < luma.length; ++i) {
+            nv21[i] = (byte) luma[i];
+        }
+        Arrays.fill(nv21, width * height, nv21.length, (byte) 128);
+        return nv21;
+    }
+
+    /**
+     * Draws the symbol, encoded by zxing, with its quiet zone centred in a
+     * horizontal slot of the frame.
+     */
+    private static void draw(int[] luma, int width, int height, String format, String value, int slotLeft,
+                             int slotWidth) {
+        BitMatrix modules = encode(format, value);
+        if (modules.getHeight() == 1) {
+            int quiet = 10;
+            int span = modules.getWidth() + 2 * quiet;
+            int moduleSize = Math.max(1, slotWidth * 8 / 10 / span);
+            int barHeight = height * 4 / 10;
+            int left = slotLeft + (slotWidth - span * moduleSize) / 2;
+            int top = (height - barHeight) / 2;
+            fill(luma, width, left, top, span * moduleSize, barHeight, PAPER);
+            for (int i = 0; i < modules.getWidth(); ++i) {
+                if (modules.get(i, 0)) {
+                    fill(luma, width, left + (i + quiet) * moduleSize, top, moduleSize, barHeight, INK);
+                }
+            }
+            return;
+        }
+
+        // PDF417 comes back with each row already four modules tall, so only the matrix codes are square
+        int quiet = format.equals("QR_CODE") ? 4 : 2;
+        int spanWidth = modules.getWidth() + 2 * quiet, spanHeight = modules.getHeight() + 2 * quiet;
+        int moduleSize = Math.max(1, Math.min(slotWidth * 6 / 10 / spanWidth, height * 6 / 10 / spanHeight));
+        int left = slotLeft + (slotWidth - spanWidth * moduleSize) / 2;
+        int top = (height - spanHeight * moduleSize) / 2;
+        fill(luma, width, left, top, spanWidth * moduleSize, spanHeight * moduleSize, PAPER);
+        for (int r = 0; r < modules.getHeight(); ++r) {
+            for (int c = 0; c < modules.getWidth(); ++c) {
+                if (modules.get(c, r)) {
+                    fill(luma, width, left + (c + quiet) * moduleSize, top + (r + quiet) * moduleSize,
+                        moduleSize, moduleSize, INK);
+                }
+            }
+        }
+    }
+
+    /**
+     * One bit per module, without a quiet zone; a single row for linear formats.
+     */
+    static BitMatrix encode(String format, String value) {
+        Map<EncodeHintType, Object> hints = new EnumMap<>(EncodeHintType.class);
+        hints.put(EncodeHintType.MARGIN, 0);
+        hints.put(EncodeHintType.DATA_MATRIX_SHAPE, SymbolShapeHint.FORCE_SQUARE);
+        try {
+            return new MultiFormatWriter().encode(value, BarcodeFormat.valueOf(format), 0, 0, hints);
+        } catch (WriterException e) {
+            throw new IllegalArgumentException("Can't encode " + value + " as " + format, e);
+        }
+    }
+
+    private static void fill(int[] luma, int width, int left, int top, int w, int h, int value) {
+        int height = luma.length / width;
+        for (int y = Math.max(0, top); y < Math.min(height, top + h); ++y) {
+            Arrays.fill(luma, y * width + Math.max(0, left), y * width + Math.min(width, left + w), value);
+        }
+    }
+
+    private static void boxBlur(int[] luma, int width, int height, int radius) {
+        int[] temp = new int[luma.length];
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                int sum = 0, n = 0;
+                for (int dx = -radius; dx <= radius; ++dx) {
+                    int sx = x + dx;
+                    if (sx < 0 || sx >= width) continue;
+                    sum += luma[y * width + sx];
+                    ++n;
+                }
+                temp[y * width + x] = sum / n;
+            }
+        }
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                int sum = 0, n = 0;
+                for (int dy = -radius; dy <= radius; ++dy) {
+                    int sy = y + dy;
+                    if (sy < 0 || sy >= height) continue;
+                    sum += temp[sy * width + x];
+                    ++n;
+                }
+                luma[y * width + x] = sum / n;
+            }
+        }
+    }
+
+    /**
+     * Rotates and shears the frame about its centre, as seen by a camera held at an angle.
+     */
+    private static int[] skew(int[] luma, int width, int height, double angle, double shear) {
+        int[] out = new int[luma.length];
+        double cos = Math.cos(angle), sin = Math.sin(angle);
+        double cx = width / 2.0, cy = height / 2.0;
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                // inverse mapping: undo the rotation, then the shear
+                double dx = x - cx, dy = y - cy;
+                double rx = dx * cos + dy * sin, ry = -dx * sin + dy * cos;
+                double sx = rx - shear * ry;
+                int px = (int) Math.round(sx + cx), py = (int) Math.round(ry + cy);
+                out[y * width + x] = px >= 0 && px < width && py >= 0 && py < height
+                    ? luma[py * width + px] : BACKGROUND;
+            }
+        }
+        return out;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+}
@@ -0,0 +1,308 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the golden-frame corpus through a decoder on a plain JVM and reports
+ * decode rate, latency percentiles, bytes allocated per frame and throughput
+ * for each thread count, both on stdout and as a JSON file.
+ * <p>
+ * Arguments, all optional:
+ * --corpus file (default src/benchmark/corpus/corpus.tsv),
+ * --decoder class implementing FrameDecoder (default ConversionOnlyDecoder),
+ * --threads comma separated thread counts (default 1,2,4),
+ * --iterations passes over the corpus per thread count (default 5),
+ * --work directory rendered frames are written to (default build/benchmark/frames),
+ * --out JSON results file (default build/benchmark/results.json).
+ */
+public class FrameBenchmark {
+    private static class Sample {
+        final CorpusGenerator.Entry entry;
+        final FrameReplayer.RecordedFrame frame;
+
+        Sample(CorpusGenerator.Entry entry, FrameReplayer.RecordedFrame frame) {
+            this.entry = entry;
+            this.frame = frame;
+        }
+    }
+
+    private static class Outcome {
+        long nanos;
+        long allocatedBytes;
+        boolean decoded;
+    }
+
+    private static class Run {
+        int threads;
+        int frames;
+        long wallNanos;
+        long[] latencies;
+        double allocatedBytesPerFrame;
+        double decodeRate;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        options.put("corpus", "src/benchmark/corpus/corpus.tsv");
+        options.put("decoder", ConversionOnlyDecoder.class.getName());
+        options.put("threads", "1,2,4");
+        options.put("iterations", "5");
+        options.put("work", "build/benchmark/frames");
+        options.put("out", "build/benchmark/results.json");
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--") || !options.containsKey(args[i].substring(2))) {
+                System.err.println("Unknown option " + args[i]);
+                System.exit(2);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+
+        File corpus = new File(options.get("corpus"));
+        File work = new File(options.get("work"));
+        if (!work.isDirectory() && !work.mkdirs()) {
+            throw new IOException("Could not create " + work);
+        }
+        Class<? extends FrameDecoder> decoderClass =
+            Class.forName(options.get("decoder")).asSubclass(FrameDecoder.class);
+        int iterations = Integer.parseInt(options.get("iterations"));
+
+        List<Sample> samples = new ArrayList<>();
+        for (CorpusGenerator.Entry entry : CorpusGenerator.read(corpus)) {
+            File recording = CorpusGenerator.recording(entry, corpus.getParentFile(), work);
+            if (!recording.isFile()) {
+                System.err.println("Skipping " + entry.name + ", no recording at " + recording);
+                continue;
+            }
+            FrameReplayer replayer = new FrameReplayer(recording);
+            for (int i = 0; i < replayer.frameCount(); ++i) {
+                samples.add(new Sample(entry, replayer.frame(i)));
+            }
+            replayer.close();
+        }
+        System.out.println("Corpus: " + samples.size() + " frames, decoder " + decoderClass.getName());
+
+        List<Run> runs = new ArrayList<>();
+        for (String threads : options.get("threads").split(",")) {
+            Run run = run(samples, decoderClass, Integer.parseInt(threads.trim()), iterations);
+            runs.add(run);
+            System.out.println(String.format(Locale.US,
+                "threads=%d frames=%d fps=%.1f p50=%dus p95=%dus p99=%dus alloc/frame=%.0fB decodeRate=%.3f",
+                run.threads, run.frames, framesPerSecond(run), percentileMicros(run, 50),
+                percentileMicros(run, 95), percentileMicros(run, 99), run.allocatedBytesPerFrame, run.decodeRate));
+        }
+
+        File out = new File(options.get("out"));
+        File outDir = out.getAbsoluteFile().getParentFile();
+        if (!outDir.isDirectory() && !outDir.mkdirs()) {
+            throw new IOException("Could not create " + outDir);
+        }
+        Map<String, Boolean> perEntry = decodedPerEntry(samples, decoderClass);
+        try (Writer writer = new FileWriter(out)) {
+            writeJson(writer, decoderClass.getName(), samples.size(), runs, perEntry, samples);
+        }
+        System.out.println("Results written to " + out);
+    }
+
+    private static Run run(final List<Sample> samples, final Class<? extends FrameDecoder> decoderClass,
+                           int threads, int iterations) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final ThreadLocal<FrameDecoder> decoders = new ThreadLocal<FrameDecoder>() {
+            @Override
+            protected FrameDecoder initialValue() {
+                try {
+                    return decoderClass.getConstructor().newInstance();
+                } catch (ReflectiveOperationException e) {
+                    throw new RuntimeException("Could not create " + decoderClass.getName(), e);
+                }
+            }
+        };
+
+        warmUp(executor, threads, decoders, samples);
+
+        List<Future<Outcome>> futures = new ArrayList<>(samples.size() * iterations);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            for (final Sample sample : samples) {
+                futures.add(executor.submit(new Callable<Outcome>() {
+                    @Override
+                    public Outcome call() {
+                        return decode(decoders.get(), sample);
+                    }
+                }));
+            }
+        }
+
+        Run run = new Run();
+        run.threads = threads;
+        run.frames = futures.size();
+        run.latencies = new long[futures.size()];
+        long allocated = 0;
+        int decoded = 0;
+        try {
+            for (int i = 0; i < futures.size(); ++i) {
+                Outcome outcome = futures.get(i).get();
+                run.latencies[i] = outcome.nanos;
+                allocated += outcome.allocatedBytes;
+                if (outcome.decoded) ++decoded;
+            }
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Decoder failed", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+        run.wallNanos = System.nanoTime() - start;
+        Arrays.sort(run.latencies);
+        run.allocatedBytesPerFrame = allocated < 0 ? -1 : (double) allocated / run.frames;
+        run.decodeRate = (double) decoded / run.frames;
+        return run;
+    }
+
+    /**
+     * Runs the whole corpus once on every thread of the executor before
+     * anything is measured, so that the JIT has compiled the decoder and each
+     * thread's decoder has already allocated whatever it keeps between frames.
+     */
+    private static void warmUp(ExecutorService executor, final int threads, final ThreadLocal<FrameDecoder> decoders,
+                               final List<Sample> samples) throws Exception {
+        // holds each task until all have started, so that every thread gets exactly one
+        final CountDownLatch started = new CountDownLatch(threads);
+        List<Future<?>> futures = new ArrayList<>(threads);
+        for (int i = 0; i < threads; ++i) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws InterruptedException {
+                    started.countDown();
+                    started.await();
+                    FrameDecoder decoder = decoders.get();
+                    for (Sample sample : samples) {
+                        decode(decoder, sample);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Decoder failed", e.getCause());
+            }
+        }
+    }
+
+    private static Outcome decode(FrameDecoder decoder, Sample sample) {
+        FrameReplayer.RecordedFrame frame = sample.frame;
+        Outcome outcome = new Outcome();
+        long allocatedBefore = allocatedBytes();
+        long before = System.nanoTime();
+        List<String> values = decoder.decode(frame.data.duplicate(), frame.format, frame.width, frame.height,
+            frame.stride, frame.rotation);
+        outcome.nanos = System.nanoTime() - before;
+        long allocatedAfter = allocatedBytes();
+        outcome.allocatedBytes = allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore;
+        outcome.decoded = containsAll(values, sample.entry.values);
+        return outcome;
+    }
+
+    /**
+     * A frame counts as decoded when each expected value is part of some
+     * reported value, so that added check digits or start and stop characters
+     * don't count against a decoder.
+     */
+    private static boolean containsAll(List<String> found, List<String> expected) {
+        for (String value : expected) {
+            if (!containsValue(found, value)) return false;
+        }
+        return true;
+    }
+
+    static boolean containsValue(List<String> found, String value) {
+        for (String candidate : found) {
+            if (candidate != null && candidate.contains(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Bytes allocated by the current thread so far, or -1 if the JVM can't tell.
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static Map<String, Boolean> decodedPerEntry(List<Sample> samples,
+                                                        Class<? extends FrameDecoder> decoderClass) throws Exception {
+        FrameDecoder decoder = decoderClass.getConstructor().newInstance();
+        Map<String, Boolean> decoded = new LinkedHashMap<>();
+        for (Sample sample : samples) {
+            boolean frameDecoded = decode(decoder, sample).decoded;
+            Boolean previous = decoded.get(sample.entry.name);
+            decoded.put(sample.entry.name, (previous == null || previous) && frameDecoded);
+        }
+        return decoded;
+    }
+
+    private static double framesPerSecond(Run run) {
+        return run.frames * 1e9 / run.wallNanos;
+    }
+
+    private static long percentileMicros(Run run, double percentile) {
+        int index = (int) Math.ceil(percentile / 100 * run.latencies.length) - 1;
+        return run.latencies[Math.max(0, Math.min(run.latencies.length - 1, index))] / 1000;
+    }
+
+    private static void writeJson(Writer writer, String decoder, int corpusFrames, List<Run> runs,
+                                  Map<String, Boolean> perEntry, List<Sample> samples) throws IOException {
+        writer.write("{\n");
+        writer.write("  \"decoder\": \"" + decoder + "\",\n");
+        writer.write("  \"corpusFrames\": " + corpusFrames + ",\n");
+        writer.write("  \"runs\": [\n");
+        for (int i = 0; i < runs.size(); ++i) {
+            Run run = runs.get(i);
+            writer.write(String.format(Locale.US,
+                "    {\"threads\": %d, \"frames\": %d, \"framesPerSecond\": %.2f, \"p50Micros\": %d, "
+                    + "\"p95Micros\": %d, \"p99Micros\": %d, \"allocatedBytesPerFrame\": %.0f, \"decodeRate\": %.4f}%s\n",
+                run.threads, run.frames, framesPerSecond(run), percentileMicros(run, 50), percentileMicros(run, 95),
+                percentileMicros(run, 99), run.allocatedBytesPerFrame, run.decodeRate,
+                i < runs.size() - 1 ? "," : ""));
+        }
+        writer.write("  ],\n");
+        writer.write("  \"entries\": [\n");
+        Map<String, CorpusGenerator.Entry> entries = new LinkedHashMap<>();
+        for (Sample sample : samples) {
+            entries.put(sample.entry.name, sample.entry);
+        }
+        int i = 0;
+        for (CorpusGenerator.Entry entry : entries.values()) {
+            writer.write(String.format(Locale.US,
+                "    {\"name\": \"%s\", \"format\": \"%s\", \"condition\": \"%s\", \"width\": %d, \"height\": %d, "
+                    + "\"decoded\": %b}%s\n",
+                entry.name, entry.format, entry.condition, entry.width, entry.height, perEntry.get(entry.name),
+                ++i < entries.size() ? "," : ""));
+        }
+        writer.write("  ]\n");
+        writer.write("}\n");
+    }
+}
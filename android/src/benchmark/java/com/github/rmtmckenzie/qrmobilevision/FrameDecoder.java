@@ -0,0 +1,19 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * A decoder FrameBenchmark can run the corpus through. Implementations need a
+ * public no-argument constructor; the benchmark makes one instance per thread.
+ */
+public interface FrameDecoder {
+    /**
+     * Returns the raw values of the barcodes found in the frame.
+     *
+     * @param data     - the frame bytes, read-only
+     * @param format   - FrameRecorder.FORMAT_NV21 or FORMAT_JPEG
+     * @param rotation - clockwise degrees that turn the frame upright
+     */
+    List<String> decode(ByteBuffer data, int format, int width, int height, int stride, int rotation);
+}
@@ -61,5 +61,16 @@ public enum BarcodeFormats {
         return val;
     }
 
-
+    /**
+     * Return the name of the single format matching the given value, as reported
+     * in Barcode.format, or null if there isn't one.
+     */
+    static String nameFromInt(int format) {
+        for (BarcodeFormats value : BarcodeFormats.values()) {
+            if (value != ALL_FORMATS && value.intValue == format) {
+                return value.name();
+            }
+        }
+        return null;
+    }
 }
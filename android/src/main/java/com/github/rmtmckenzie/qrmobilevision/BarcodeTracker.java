@@ -0,0 +1,139 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.graphics.Rect;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.barcode.Barcode;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Follows barcodes across frames so that most frames only need to be decoded
+ * around where codes are already known to be. A full frame is decoded every
+ * FULL_FRAME_INTERVAL frames, or whenever nothing is being tracked, to pick up
+ * codes that have come into view.
+ * <p>
+ * Tracks are keyed by value and matched on position; each keeps a stable id for
+ * as long as it stays in view.
+ */
+class BarcodeTracker {
+    private static final int FULL_FRAME_INTERVAL = 10;
+    private static final int MAX_MISSES = 3;
+    private static final float SEARCH_PADDING = 0.5f;
+
+    static class Track {
+        final int id;
+        final String value;
+        final Rect box = new Rect();
+        int dx, dy;
+        int misses;
+
+        private Track(int id, String value, Rect box) {
+            this.id = id;
+            this.value = value;
+            this.box.set(box);
+        }
+    }
+
+    private final List<Track> tracks = new ArrayList<>();
+    private int nextId = 1;
+    private int framesSinceFull = FULL_FRAME_INTERVAL;
+
+    /**
+     * Returns the region of the frame to decode, or null if the whole frame should be decoded.
+     */
+    synchronized Rect searchRegion(int frameWidth, int frameHeight) {
+        if (tracks.isEmpty() || framesSinceFull >= FULL_FRAME_INTERVAL) {
+            framesSinceFull = 0;
+            return null;
+        }
+        framesSinceFull++;
+
+        Rect region = null;
+        for (Track track : tracks) {
+            Rect predicted = new Rect(track.box);
+            predicted.offset(track.dx, track.dy);
+            int padX = (int) (predicted.width() * SEARCH_PADDING);
+            int padY = (int) (predicted.height() * SEARCH_PADDING);
+            predicted.inset(-padX, -padY);
+            if (region == null) {
+                region = predicted;
+            } else {
+                region.union(predicted);
+            }
+        }
+
+        // NV21 chroma is subsampled 2x2, keep the crop on even boundaries
+        region.left = Math.max(0, region.left) & ~1;
+        region.top = Math.max(0, region.top) & ~1;
+        region.right = Math.min(frameWidth, region.right) & ~1;
+        region.bottom = Math.min(frameHeight, region.bottom) & ~1;
+        if (region.width() <= 0 || region.height() <= 0) {
+            framesSinceFull = 0;
+            return null;
+        }
+        return region;
+    }
+
+    /**
+     * Matches the detections from one frame against the current tracks.
+     *
+     * @param detections - detected barcodes, in coordinates of the decoded region
+     * @param region     - the region that was decoded, or null for the full frame
+     * @return the tracks that were seen in this frame
+     */
+    synchronized List<Track> update(SparseArray<Barcode> detections, Rect region) {
+        int offsetX = region == null ? 0 : region.left;
+        int offsetY = region == null ? 0 : region.top;
+
+        List<Track> seen = new ArrayList<>(detections.size());
+        for (int i = 0; i < detections.size(); ++i) {
+            Barcode barcode = detections.valueAt(i);
+            Rect box = barcode.getBoundingBox();
+            box.offset(offsetX, offsetY);
+
+            Track track = match(barcode.displayValue, box, seen);
+            if (track == null) {
+                track = new Track(nextId++, barcode.displayValue, box);
+                tracks.add(track);
+            } else {
+                track.dx = box.centerX() - track.box.centerX();
+                track.dy = box.centerY() - track.box.centerY();
+                track.box.set(box);
+            }
+            track.misses = 0;
+            seen.add(track);
+        }
+
+        for (Iterator<Track> it = tracks.iterator(); it.hasNext(); ) {
+            Track track = it.next();
+            if (!seen.contains(track) && ++track.misses > MAX_MISSES) {
+                it.remove();
+            }
+        }
+        return seen;
+    }
+
+    synchronized void reset() {
+        tracks.clear();
+        framesSinceFull = FULL_FRAME_INTERVAL;
+    }
+
+    private Track match(String value, Rect box, List<Track> alreadySeen) {
+        Track best = null;
+        long bestDistance = Long.MAX_VALUE;
+        for (Track track : tracks) {
+            if (alreadySeen.contains(track) || !track.value.equals(value)) continue;
+            long dx = box.centerX() - track.box.centerX();
+            long dy = box.centerY() - track.box.centerY();
+            long distance = dx * dx + dy * dy;
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = track;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,157 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.barcode.Barcode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes a batch of still images (file paths or encoded bytes) concurrently,
+ * reporting each image's result as soon as it is done.
+ */
+class BulkDecoder {
+    private static final int MAX_DIMENSION = 2048;
+
+    interface Listener {
+        void imageDecoded(int index, List<String> values, String error);
+
+        void allDecoded(int count);
+    }
+
+    private final Context context;
+    private final int formats;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    BulkDecoder(Context context, int formats) {
+        this.context = context.getApplicationContext();
+        this.formats = formats;
+    }
+
+    /**
+     * Each source is either a String path or a byte[] of an encoded image.
+     */
+    void decode(final List<Object> sources, final Listener listener) {
+        if (sources.isEmpty()) {
+            listener.allDecoded(0);
+            return;
+        }
+
+        int threads = Math.min(sources.size(), Runtime.getRuntime().availableProcessors());
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        // detectors aren't shared between threads, so keep one per worker
+        final DetectorPool detectors = new DetectorPool(context, formats, threads);
+
+        final AtomicInteger remaining = new AtomicInteger(sources.size());
+        for (int i = 0; i < sources.size(); ++i) {
+            final int index = i;
+            final Object source = sources.get(i);
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    List<String> values = null;
+                    String error = null;
+                    Detector<Barcode> detector = null;
+                    try {
+                        detector = detectors.acquire();
+                        values = decodeOne(detector, source);
+                    } catch (InterruptedException e) {
+                        error = "Interrupted";
+                    } catch (Throwable t) {
+                        // errors too, such as running out of memory on a huge image, only fail this one
+                        error = t.getMessage() != null ? t.getMessage() : t.toString();
+                    } finally {
+                        if (detector != null) detectors.release(detector);
+                        post(listener, index, values, error);
+                        if (remaining.decrementAndGet() == 0) {
+                            finish(executor, detectors, listener, sources.size());
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private void finish(ExecutorService executor, DetectorPool detectors, final Listener listener,
+                        final int count) {
+        executor.shutdown();
+        detectors.releaseAll();
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.allDecoded(count);
+            }
+        });
+    }
+
+    private void post(final Listener listener, final int index, final List<String> values, final String error) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.imageDecoded(index, values, error);
+            }
+        });
+    }
+
+    private static List<String> decodeOne(Detector<Barcode> detector, Object source) {
+        Bitmap bmp = decodeSampledBitmap(source);
+        if (bmp == null) {
+            throw new IllegalArgumentException("Could not decode image");
+        }
+
+        try {
+            Frame frame = new Frame.Builder().setBitmap(bmp).build();
+            SparseArray<Barcode> detected = detector.detect(frame);
+            List<String> values = new ArrayList<>(detected.size());
+            for (int i = 0; i < detected.size(); ++i) {
+                values.add(detected.valueAt(i).displayValue);
+            }
+            return values;
+        } finally {
+            bmp.recycle();
+        }
+    }
+
+    /**
+     * Decodes the image, subsampling by a power of two so that neither side is
+     * much over MAX_DIMENSION.
+     */
+    private static Bitmap decodeSampledBitmap(Object source) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(source, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        int sampleSize = 1;
+        while (Math.max(options.outWidth, options.outHeight) / (sampleSize * 2) >= MAX_DIMENSION) {
+            sampleSize *= 2;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        return decode(source, options);
+    }
+
+    private static Bitmap decode(Object source, BitmapFactory.Options options) {
+        if (source instanceof String) {
+            return BitmapFactory.decodeFile((String) source, options);
+        } else if (source instanceof byte[]) {
+            byte[] bytes = (byte[]) source;
+            return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+        }
+        throw new IllegalArgumentException("Expected a path or bytes, got " + source);
+    }
+}
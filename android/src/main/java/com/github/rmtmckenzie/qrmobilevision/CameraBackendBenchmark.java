@@ -0,0 +1,235 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Runs the back camera briefly through each backend in turn, with nothing
+ * decoded, and picks the one that delivers frames fastest once the cost of
+ * reading them is taken off.
+ * <p>
+ * Each backend gets a warm-up while exposure settles, counted from its first
+ * frame so that the time the camera takes to open is left out, then a measured
+ * window in which frames are counted and each is copied out once, the way
+ * decoding reads them. The score is frames per second scaled by the part of each frame
+ * interval left over after that copy. Unless the other backend scores clearly
+ * better the expected one is kept, so noise doesn't flip the choice.
+ * <p>
+ * Only meant to be used from the main thread.
+ */
+class CameraBackendBenchmark {
+    private static final String TAG = "c.g.r.CameraBackendBenchmark";
+
+    private static final long WARM_UP_MS = 500;
+    private static final long MEASURE_MS = 1500;
+    // a backend that delivers no frame by then scores nothing
+    private static final long OPEN_TIMEOUT_MS = 3000;
+    // between one backend closing the camera and the next opening it
+    private static final long GAP_MS = 250;
+    // how much better the other backend has to score to be picked
+    private static final float MARGIN = 1.1f;
+
+    private static final String[] BACKENDS = {
+        ReaderOptions.CAMERA_BACKEND_CAMERA1, ReaderOptions.CAMERA_BACKEND_CAMERA2
+    };
+
+    interface CameraFactory {
+        QrCamera create(String backend, QrDetector detector);
+    }
+
+    interface Callback {
+        void finished(String backend);
+    }
+
+    /**
+     * Counts the frames a camera delivers and times reading each one.
+     */
+    static class Probe {
+        private final Runnable firstFrame;
+        private boolean sawFrame;
+        private byte[] scratch = new byte[0];
+        private long frames;
+        private long copyNanos;
+        private long startNanos;
+
+        /**
+         * @param firstFrame - run on the camera's thread when the first frame arrives
+         */
+        Probe(Runnable firstFrame) {
+            this.firstFrame = firstFrame;
+        }
+
+        void frame(ByteBuffer data) {
+            boolean first;
+            synchronized (this) {
+                first = !sawFrame;
+                sawFrame = true;
+                copy(data);
+            }
+            if (first) {
+                firstFrame.run();
+            }
+        }
+
+        private void copy(ByteBuffer data) {
+            ByteBuffer source = data.duplicate();
+            int length = source.remaining();
+            if (scratch.length < length) {
+                scratch = new byte[length];
+            }
+            long start = System.nanoTime();
+            source.get(scratch, 0, length);
+            copyNanos += System.nanoTime() - start;
+            ++frames;
+        }
+
+        synchronized void reset() {
+            frames = 0;
+            copyNanos = 0;
+            startNanos = System.nanoTime();
+        }
+
+        synchronized float score() {
+            if (frames == 0) return 0;
+            float seconds = (System.nanoTime() - startNanos) / 1e9f;
+            float fps = frames / seconds;
+            float copySeconds = copyNanos / 1e9f / frames;
+            return fps * Math.max(0, 1 - copySeconds * fps);
+        }
+    }
+
+    private final Context context;
+    private final int formats;
+    private final CameraFactory factory;
+    private final String expected;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final float[] scores = new float[BACKENDS.length];
+    private Callback callback;
+    private int current = -1;
+    private QrCamera camera;
+    private QrDetector detector;
+    private Probe probe;
+    private boolean cancelled;
+    private final Runnable openTimeout = new Runnable() {
+        @Override
+        public void run() {
+            Log.w(TAG, BACKENDS[current] + " delivered no frames");
+            finishBackend();
+        }
+    };
+
+    /**
+     * @param expected - the backend picked without benchmarking, kept unless the other is clearly faster
+     */
+    CameraBackendBenchmark(Context context, int formats, CameraFactory factory, String expected) {
+        this.context = context;
+        this.formats = formats;
+        this.factory = factory;
+        this.expected = expected;
+    }
+
+    void run(Callback callback) {
+        this.callback = callback;
+        next();
+    }
+
+    /**
+     * Stops the camera if a backend is being measured. The callback is never called.
+     */
+    void cancel() {
+        cancelled = true;
+        mainHandler.removeCallbacksAndMessages(null);
+        close();
+    }
+
+    private void next() {
+        if (cancelled) return;
+        ++current;
+        if (current == BACKENDS.length) {
+            callback.finished(winner());
+            return;
+        }
+
+        final int backend = current;
+        probe = new Probe(new Runnable() {
+            @Override
+            public void run() {
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // the backend may have timed out before its first frame came
+                        if (current == backend && camera != null) {
+                            warmUp();
+                        }
+                    }
+                });
+            }
+        });
+        detector = QrDetector.forBenchmark(context, formats, probe);
+        try {
+            camera = factory.create(BACKENDS[current], detector);
+            camera.start();
+        } catch (Throwable t) {
+            Log.w(TAG, "Could not start " + BACKENDS[current], t);
+            finishBackend();
+            return;
+        }
+        mainHandler.postDelayed(openTimeout, OPEN_TIMEOUT_MS);
+    }
+
+    private void warmUp() {
+        mainHandler.removeCallbacks(openTimeout);
+        mainHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                probe.reset();
+                mainHandler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        finishBackend();
+                    }
+                }, MEASURE_MS);
+            }
+        }, WARM_UP_MS);
+    }
+
+    private void finishBackend() {
+        scores[current] = probe.score();
+        Log.i(TAG, BACKENDS[current] + " scored " + scores[current]);
+        close();
+        mainHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                next();
+            }
+        }, GAP_MS);
+    }
+
+    private void close() {
+        if (camera != null) {
+            try {
+                camera.stop();
+            } catch (Throwable t) {
+                Log.w(TAG, "Could not stop camera", t);
+            }
+            camera = null;
+        }
+        if (detector != null) {
+            detector.release();
+            detector = null;
+        }
+    }
+
+    private String winner() {
+        int expectedIndex = ReaderOptions.CAMERA_BACKEND_CAMERA1.equals(expected) ? 0 : 1;
+        int other = 1 - expectedIndex;
+        if (scores[other] > scores[expectedIndex] * MARGIN) {
+            return BACKENDS[other];
+        }
+        return expected;
+    }
+}
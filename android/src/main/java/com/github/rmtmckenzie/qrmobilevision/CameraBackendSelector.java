@@ -0,0 +1,130 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Decides whether frames come from the old camera API or Camera2.
+ * <p>
+ * An explicit choice in the options always wins. Otherwise the winner of an
+ * earlier CameraBackendBenchmark on this device is used, as long as the build
+ * fingerprint hasn't changed since, and failing that the hardware level of the
+ * back camera decides: LEGACY devices only run Camera2 through a slow shim over
+ * the old API, while FULL devices are worth Camera2 even before Android N.
+ */
+class CameraBackendSelector {
+    private static final String TAG = "c.g.r.CameraBackendSelector";
+
+    private static final String PREFERENCES = "com.github.rmtmckenzie.qr_mobile_vision.camera_backend";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_BACKEND = "backend";
+
+    /**
+     * @param requested - one of the ReaderOptions CAMERA_BACKEND constants
+     * @return CAMERA_BACKEND_CAMERA1 or CAMERA_BACKEND_CAMERA2
+     */
+    static String choose(Context context, String requested) {
+        if (ReaderOptions.CAMERA_BACKEND_CAMERA1.equals(requested)) {
+            return ReaderOptions.CAMERA_BACKEND_CAMERA1;
+        }
+        if (ReaderOptions.CAMERA_BACKEND_CAMERA2.equals(requested)) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                return ReaderOptions.CAMERA_BACKEND_CAMERA2;
+            }
+            Log.w(TAG, "Camera2 needs API 21, using the old camera API instead.");
+            return ReaderOptions.CAMERA_BACKEND_CAMERA1;
+        }
+        String benchmarked = benchmarked(context);
+        if (benchmarked != null) {
+            return benchmarked;
+        }
+        return byHardwareLevel(context);
+    }
+
+    /**
+     * Whether there is a choice a benchmark could settle: the backend isn't
+     * forced, both are available and no earlier benchmark result applies.
+     */
+    static boolean canBenchmark(Context context, String requested) {
+        return ReaderOptions.CAMERA_BACKEND_AUTO.equals(requested)
+            && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+            && benchmarked(context) == null;
+    }
+
+    /**
+     * Keeps the backend a benchmark picked for later starts on this build of the device.
+     */
+    static void remember(Context context, String backend) {
+        preferences(context).edit()
+            .putString(KEY_FINGERPRINT, Build.FINGERPRINT)
+            .putString(KEY_BACKEND, backend)
+            .apply();
+    }
+
+    private static String benchmarked(Context context) {
+        SharedPreferences preferences = preferences(context);
+        if (!Build.FINGERPRINT.equals(preferences.getString(KEY_FINGERPRINT, null))) {
+            // never benchmarked, or the OS and its camera stack have been updated since
+            return null;
+        }
+        String backend = preferences.getString(KEY_BACKEND, null);
+        if (ReaderOptions.CAMERA_BACKEND_CAMERA1.equals(backend)
+            || ReaderOptions.CAMERA_BACKEND_CAMERA2.equals(backend)) {
+            return backend;
+        }
+        return null;
+    }
+
+    private static SharedPreferences preferences(Context context) {
+        return context.getApplicationContext().getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    private static String byHardwareLevel(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return ReaderOptions.CAMERA_BACKEND_CAMERA1;
+        }
+        Integer level = backCameraHardwareLevel(context);
+        if (level == null) {
+            // can't tell, so keep to what has always been used
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                ? ReaderOptions.CAMERA_BACKEND_CAMERA2 : ReaderOptions.CAMERA_BACKEND_CAMERA1;
+        }
+        switch (level) {
+            case CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY:
+                return ReaderOptions.CAMERA_BACKEND_CAMERA1;
+            case CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LIMITED:
+                // LIMITED implementations before N were often unreliable
+                return Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                    ? ReaderOptions.CAMERA_BACKEND_CAMERA2 : ReaderOptions.CAMERA_BACKEND_CAMERA1;
+            default:
+                // FULL and LEVEL_3
+                return ReaderOptions.CAMERA_BACKEND_CAMERA2;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static Integer backCameraHardwareLevel(Context context) {
+        CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        if (manager == null) return null;
+        try {
+            for (String id : manager.getCameraIdList()) {
+                CameraCharacteristics characteristics = manager.getCameraCharacteristics(id);
+                Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+                if (facing != null && facing == CameraCharacteristics.LENS_FACING_BACK) {
+                    Integer level = characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+                    Log.d(TAG, "Back camera hardware level: " + level);
+                    return level;
+                }
+            }
+        } catch (CameraAccessException e) {
+            Log.w(TAG, "Could not read the camera hardware level", e);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,63 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.annotation.TargetApi;
+import android.hardware.camera2.CaptureResult;
+
+/**
+ * Remembers, by sensor timestamp, whether recent captures were taken while
+ * focus, exposure or the lens were still settling so that the matching
+ * ImageReader images can be dropped before they are copied or decoded.
+ */
+@TargetApi(21)
+class CaptureSettleTracker {
+    private static final int HISTORY = 16;
+
+    private final long[] timestamps = new long[HISTORY];
+    private final boolean[] settled = new boolean[HISTORY];
+    private int next = 0;
+
+    synchronized void record(CaptureResult result) {
+        Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        if (timestamp == null) return;
+
+        timestamps[next] = timestamp;
+        settled[next] = isSettled(result);
+        next = (next + 1) % HISTORY;
+    }
+
+    /**
+     * Returns false only if the capture with this timestamp is known to be unsettled.
+     * Images whose capture result hasn't arrived yet are let through.
+     */
+    synchronized boolean isSettled(long timestamp) {
+        for (int i = 0; i < HISTORY; ++i) {
+            if (timestamps[i] == timestamp) {
+                return settled[i];
+            }
+        }
+        return true;
+    }
+
+    synchronized void reset() {
+        for (int i = 0; i < HISTORY; ++i) {
+            timestamps[i] = 0;
+        }
+        next = 0;
+    }
+
+    private static boolean isSettled(CaptureResult result) {
+        Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
+        if (afState != null && (afState == CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN
+            || afState == CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN)) {
+            return false;
+        }
+
+        Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+        if (aeState != null && aeState == CaptureResult.CONTROL_AE_STATE_SEARCHING) {
+            return false;
+        }
+
+        Integer lensState = result.get(CaptureResult.LENS_STATE);
+        return lensState == null || lensState != CaptureResult.LENS_STATE_MOVING;
+    }
+}
@@ -0,0 +1,146 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import com.google.android.gms.vision.barcode.Barcode;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which decoded values are worth passing on, so that values the app
+ * would only throw away never cross the method channel. Every constraint that
+ * is set has to hold.
+ */
+class ContentFilter {
+    static final String CHARSET_NUMERIC = "numeric";
+    static final String CHARSET_ALPHANUMERIC = "alphanumeric";
+    static final String CHARSET_HEX = "hex";
+
+    private final List<String> prefixes;
+    private final int minLength, maxLength;
+    private final String charset;
+    private final Pattern pattern;
+    private final boolean gs1Checksum;
+
+    /**
+     * @param prefixes    - the value must start with one of these; null or empty for any
+     * @param minLength   - 0 for no minimum
+     * @param maxLength   - 0 for no maximum
+     * @param charset     - one of the CHARSET constants, or null for any characters
+     * @param pattern     - regular expression the whole value must match, or null
+     * @param gs1Checksum - the value must be a GTIN, or start with one as application identifier 01,
+     *                    with a valid GS1 check digit
+     */
+    ContentFilter(List<String> prefixes, int minLength, int maxLength, String charset, Pattern pattern,
+                  boolean gs1Checksum) {
+        this.prefixes = prefixes;
+        this.minLength = minLength;
+        this.maxLength = maxLength;
+        this.charset = charset;
+        this.pattern = pattern;
+        this.gs1Checksum = gs1Checksum;
+    }
+
+    boolean accepts(Barcode barcode) {
+        String value = barcode.displayValue;
+        if (value == null) return false;
+        if (minLength > 0 && value.length() < minLength) return false;
+        if (maxLength > 0 && value.length() > maxLength) return false;
+        if (prefixes != null && !prefixes.isEmpty() && !hasPrefix(value)) return false;
+        if (charset != null && !inCharset(value)) return false;
+        if (pattern != null && !pattern.matcher(value).matches()) return false;
+        return !gs1Checksum || hasValidGtin(value, barcode.format);
+    }
+
+    private boolean hasPrefix(String value) {
+        for (String prefix : prefixes) {
+            if (value.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+    private boolean inCharset(String value) {
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            boolean digit = c >= '0' && c <= '9';
+            switch (charset) {
+                case CHARSET_NUMERIC:
+                    if (!digit) return false;
+                    break;
+                case CHARSET_ALPHANUMERIC:
+                    if (!digit && !(c >= 'A' && c <= 'Z') && !(c >= 'a' && c <= 'z')) return false;
+                    break;
+                case CHARSET_HEX:
+                    if (!digit && !(c >= 'A' && c <= 'F') && !(c >= 'a' && c <= 'f')) return false;
+                    break;
+                default:
+                    return true;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasValidGtin(String value, int format) {
+        if (format == Barcode.UPC_E && value.length() == 8) {
+            // the check digit is that of the UPC-A the symbol is short for
+            String expanded = expandUpcE(value);
+            return expanded != null && hasValidCheckDigit(expanded);
+        }
+        int length = value.length();
+        if (length == 8 || length == 12 || length == 13 || length == 14) {
+            return hasValidCheckDigit(value);
+        }
+        // a GS1 element string that starts with the GTIN, with or without parentheses
+        if (value.startsWith("(01)") && length >= 18) {
+            return hasValidCheckDigit(value.substring(4, 18));
+        }
+        if (value.startsWith("01") && length >= 16) {
+            return hasValidCheckDigit(value.substring(2, 16));
+        }
+        return false;
+    }
+
+    /**
+     * Checks the GS1 mod 10 check digit, the last of the given digits.
+     */
+    static boolean hasValidCheckDigit(String digits) {
+        int sum = 0;
+        boolean triple = true;
+        for (int i = digits.length() - 2; i >= 0; --i) {
+            int digit = digits.charAt(i) - '0';
+            if (digit < 0 || digit > 9) return false;
+            sum += triple ? 3 * digit : digit;
+            triple = !triple;
+        }
+        int check = digits.charAt(digits.length() - 1) - '0';
+        return check >= 0 && check <= 9 && (10 - sum % 10) % 10 == check;
+    }
+
+    /**
+     * Expands an 8 digit UPC-E value, number system and check digit included,
+     * to the 12 digit UPC-A it stands for, or returns null if it isn't one.
+     */
+    static String expandUpcE(String upcE) {
+        for (int i = 0; i < upcE.length(); ++i) {
+            if (upcE.charAt(i) < '0' || upcE.charAt(i) > '9') return null;
+        }
+        String d = upcE.substring(1, 7);
+        String body;
+        switch (d.charAt(5)) {
+            case '0':
+            case '1':
+            case '2':
+                body = d.substring(0, 2) + d.charAt(5) + "0000" + d.substring(2, 5);
+                break;
+            case '3':
+                body = d.substring(0, 3) + "00000" + d.substring(3, 5);
+                break;
+            case '4':
+                body = d.substring(0, 4) + "00000" + d.charAt(4);
+                break;
+            default:
+                body = d.substring(0, 5) + "0000" + d.charAt(5);
+                break;
+        }
+        return upcE.charAt(0) + body + upcE.charAt(7);
+    }
+}
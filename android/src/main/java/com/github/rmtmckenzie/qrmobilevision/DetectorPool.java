@@ -0,0 +1,61 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.content.Context;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.barcode.Barcode;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A fixed set of detectors for the same formats, each used by one thread at a time.
+ * Detectors are built as they are first needed, on the thread acquiring them,
+ * and never taken from DetectorProvider's warm-up.
+ */
+class DetectorPool {
+    private final Context context;
+    private final int formats;
+    private final BlockingQueue<Detector<Barcode>> detectors;
+    private final int size;
+    private int built;
+
+    DetectorPool(Context context, int formats, int size) {
+        this.context = context;
+        this.formats = formats;
+        this.size = size;
+        this.detectors = new ArrayBlockingQueue<>(size);
+    }
+
+    int size() {
+        return size;
+    }
+
+    Detector<Barcode> acquire() throws InterruptedException {
+        Detector<Barcode> detector = detectors.poll();
+        if (detector != null) {
+            return detector;
+        }
+        synchronized (this) {
+            if (built < size) {
+                ++built;
+                return DetectorProvider.create(context, formats);
+            }
+        }
+        return detectors.take();
+    }
+
+    void release(Detector<Barcode> detector) {
+        detectors.add(detector);
+    }
+
+    /**
+     * Releases the native detectors. Only call once all acquired detectors are back.
+     */
+    void releaseAll() {
+        for (Detector<Barcode> detector : detectors) {
+            detector.release();
+        }
+        detectors.clear();
+    }
+}
@@ -0,0 +1,141 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.barcode.Barcode;
+import com.google.android.gms.vision.barcode.BarcodeDetector;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Builds BarcodeDetectors, optionally warming one up ahead of time so that
+ * the first start doesn't pay for loading the native detector.
+ */
+class DetectorProvider {
+    private static final String TAG = "c.g.r.DetectorProvider";
+    private static final int WARMUP_SIZE = 64;
+
+    private static BarcodeDetector warmDetector;
+    private static int warmFormats;
+    private static boolean warming;
+    private static int warmingFormats;
+    // cleared once a start has built its own detector for warmingFormats, so
+    // the one being warmed would only sit around unused
+    private static boolean warmingWanted;
+    // formats asked for while another warm-up was running, if any
+    private static boolean pending;
+    private static int pendingFormats;
+    private static Context appContext;
+
+    /**
+     * Builds a detector for the given formats on a background thread and runs a
+     * blank frame through it. Does nothing if one is already warm; while
+     * another warm-up is running, the latest formats asked for are warmed once
+     * it finishes.
+     */
+    static synchronized void prewarm(Context context, final int formats) {
+        if (warmDetector != null && warmFormats == formats) {
+            return;
+        }
+        appContext = context.getApplicationContext();
+        if (warming) {
+            if (warmingFormats == formats) {
+                warmingWanted = true;
+                pending = false;
+            } else {
+                pending = true;
+                pendingFormats = formats;
+            }
+            return;
+        }
+        startWarming(formats);
+    }
+
+    private static void startWarming(final int formats) {
+        final Context context = appContext;
+        warming = true;
+        warmingFormats = formats;
+        warmingWanted = true;
+        try {
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    BarcodeDetector detector = build(context, formats);
+                    if (!detector.isOperational()) {
+                        Log.w(TAG, "Detector not yet operational, skipping warm-up.");
+                        detector.release();
+                        finishWarming(null, formats);
+                        return;
+                    }
+
+                    byte[] blank = new byte[WARMUP_SIZE * WARMUP_SIZE * 3 / 2];
+                    Frame frame = new Frame.Builder()
+                        .setImageData(ByteBuffer.wrap(blank), WARMUP_SIZE, WARMUP_SIZE, ImageFormat.NV21)
+                        .build();
+                    detector.detect(frame);
+                    finishWarming(detector, formats);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            Log.w(TAG, "Could not prewarm detector", ree);
+            warming = false;
+            pending = false;
+        }
+    }
+
+    private static synchronized void finishWarming(BarcodeDetector detector, int formats) {
+        warming = false;
+        if (detector != null) {
+            if (warmingWanted) {
+                if (warmDetector != null) {
+                    warmDetector.release();
+                }
+                warmDetector = detector;
+                warmFormats = formats;
+            } else {
+                // a start got there first and built its own
+                detector.release();
+            }
+        }
+        if (pending) {
+            pending = false;
+            if (warmDetector == null || warmFormats != pendingFormats) {
+                startWarming(pendingFormats);
+            }
+        }
+    }
+
+    /**
+     * Returns the warmed-up detector if it matches the formats, otherwise builds a new one.
+     * A warmed detector is only handed out once.
+     */
+    static synchronized Detector<Barcode> obtain(Context context, int formats) {
+        if (warmDetector != null && warmFormats == formats) {
+            Log.i(TAG, "Using prewarmed detector for formats: " + formats);
+            BarcodeDetector detector = warmDetector;
+            warmDetector = null;
+            return detector;
+        }
+        if (warming && warmingFormats == formats) {
+            warmingWanted = false;
+        }
+        return build(context.getApplicationContext(), formats);
+    }
+
+    /**
+     * Builds a new detector, leaving any warmed-up one for the next camera start.
+     */
+    static Detector<Barcode> create(Context context, int formats) {
+        return build(context.getApplicationContext(), formats);
+    }
+
+    private static BarcodeDetector build(Context context, int formats) {
+        return new BarcodeDetector.Builder(context).setBarcodeFormats(formats).build();
+    }
+}
@@ -0,0 +1,190 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Point;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.barcode.Barcode;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the detector on raw frames supplied from outside the plugin's own camera
+ * pipeline. Frames that are already tightly packed NV21 or YV12 are wrapped and
+ * handed to the detector as-is; luma-only or padded frames have their luma
+ * repacked into a reused direct buffer.
+ * <p>
+ * Once no frame has come in for IDLE_RELEASE_MS the detector and buffer are
+ * released and the thread ends, to be set up again by the next frame.
+ */
+class ExternalFrameDetector {
+    static final String FORMAT_NV21 = "nv21";
+    static final String FORMAT_YV12 = "yv12";
+    static final String FORMAT_LUMA = "luma";
+
+    private static final long IDLE_RELEASE_MS = 30000;
+
+    interface Callback {
+        void detected(List<Map<String, Object>> barcodes, long latencyMicros);
+
+        void failed(String message);
+    }
+
+    private final Context context;
+    // the detector is confined to this thread, which is only kept while in use
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(0, 1,
+        IDLE_RELEASE_MS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable idleRelease = new Runnable() {
+        @Override
+        public void run() {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    releaseDetector();
+                }
+            });
+        }
+    };
+    private Detector<Barcode> detector;
+    private int detectorFormats;
+    private ByteBuffer repackBuffer;
+
+    ExternalFrameDetector(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    void detect(final byte[] bytes, final String format, final int width, final int height,
+                final int stride, final int rotation, final int formats, final Callback callback) {
+        mainHandler.removeCallbacks(idleRelease);
+        mainHandler.postDelayed(idleRelease, IDLE_RELEASE_MS);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    if (detector == null || detectorFormats != formats) {
+                        if (detector != null) detector.release();
+                        // not the warm detector, which is kept for the next camera start
+                        detector = DetectorProvider.create(context, formats);
+                        detectorFormats = formats;
+                    }
+
+                    checkFormat(format);
+                    Frame.Builder builder = new Frame.Builder().setRotation(rotation / 90);
+                    if (!FORMAT_LUMA.equals(format) && stride == width) {
+                        if (bytes.length < width * height * 3 / 2) {
+                            throw new IllegalArgumentException("Frame is smaller than width and height allow");
+                        }
+                        builder.setImageData(ByteBuffer.wrap(bytes), width, height, imageFormat(format));
+                    } else {
+                        builder.setImageData(repackLuma(bytes, width, height, stride), width, height, ImageFormat.NV21);
+                    }
+                    SparseArray<Barcode> detected = detector.detect(builder.build());
+
+                    final List<Map<String, Object>> barcodes = new ArrayList<>(detected.size());
+                    for (int i = 0; i < detected.size(); ++i) {
+                        barcodes.add(toMap(detected.valueAt(i)));
+                    }
+                    final long latencyMicros = (System.nanoTime() - start) / 1000;
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.detected(barcodes, latencyMicros);
+                        }
+                    });
+                } catch (final RuntimeException e) {
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.failed(e.getMessage());
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    void release() {
+        mainHandler.removeCallbacks(idleRelease);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                releaseDetector();
+            }
+        });
+        executor.shutdown();
+    }
+
+    private void releaseDetector() {
+        if (detector != null) {
+            detector.release();
+            detector = null;
+        }
+        repackBuffer = null;
+    }
+
+    private static int imageFormat(String format) {
+        return FORMAT_YV12.equals(format) ? ImageFormat.YV12 : ImageFormat.NV21;
+    }
+
+    private static void checkFormat(String format) {
+        if (!FORMAT_NV21.equals(format) && !FORMAT_YV12.equals(format) && !FORMAT_LUMA.equals(format)) {
+            throw new IllegalArgumentException("Unsupported format " + format);
+        }
+    }
+
+    /**
+     * Copies the luma rows into a tight NV21 buffer with neutral chroma. Barcode
+     * detection only looks at luma, so the source chroma layout doesn't matter.
+     */
+    private ByteBuffer repackLuma(byte[] bytes, int width, int height, int stride) {
+        if (bytes.length < stride * (height - 1) + width) {
+            throw new IllegalArgumentException("Frame is smaller than stride and height allow");
+        }
+
+        int size = width * height * 3 / 2;
+        if (repackBuffer == null || repackBuffer.capacity() != size) {
+            repackBuffer = ByteBuffer.allocateDirect(size);
+            for (int i = width * height; i < size; ++i) {
+                repackBuffer.put(i, (byte) 128);
+            }
+        }
+        repackBuffer.clear();
+        for (int row = 0; row < height; ++row) {
+            repackBuffer.put(bytes, row * stride, width);
+        }
+        repackBuffer.rewind();
+        return repackBuffer;
+    }
+
+    private static Map<String, Object> toMap(Barcode barcode) {
+        Map<String, Object> map = new HashMap<>();
+        map.put("value", barcode.displayValue);
+        map.put("rawValue", barcode.rawValue);
+        map.put("format", BarcodeFormats.nameFromInt(barcode.format));
+
+        List<Integer> corners = new ArrayList<>();
+        if (barcode.cornerPoints != null) {
+            for (Point point : barcode.cornerPoints) {
+                corners.add(point.x);
+                corners.add(point.y);
+            }
+        }
+        map.put("corners", corners);
+        return map;
+    }
+}
@@ -0,0 +1,85 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.SystemClock;
+
+/**
+ * Decides when the camera should refocus and where, based on detection results
+ * rather than a fixed timer. Refocus is requested only once a run of frames has
+ * gone by without a detection, and is aimed at the last place something was found.
+ * <p>
+ * Only meant to be used from the main thread.
+ */
+class FocusScheduler {
+    private static final int MISSES_BEFORE_REFOCUS = 10;
+    private static final long MIN_REFOCUS_INTERVAL_MS = 750;
+    private static final long REGION_EXPIRY_MS = 3000;
+    private static final float REGION_PADDING = 0.25f;
+    private static final float MIN_REGION_SIZE = 0.1f;
+
+    interface Target {
+        /**
+         * Focus and meter on the given region, or on the whole frame if null.
+         * The region is normalized to [0, 1] in sensor orientation.
+         */
+        void refocus(RectF region);
+    }
+
+    private final Target target;
+    private RectF lastRegion;
+    private long lastRegionTime;
+    private long lastRefocusTime;
+    private int misses;
+
+    FocusScheduler(Target target) {
+        this.target = target;
+    }
+
+    void reset() {
+        lastRegion = null;
+        misses = 0;
+        lastRefocusTime = 0;
+    }
+
+    void onDetected(Rect boundingBox, int frameWidth, int frameHeight) {
+        misses = 0;
+        if (boundingBox == null || frameWidth <= 0 || frameHeight <= 0) return;
+
+        float padX = boundingBox.width() * REGION_PADDING;
+        float padY = boundingBox.height() * REGION_PADDING;
+        RectF region = new RectF(
+            (boundingBox.left - padX) / frameWidth,
+            (boundingBox.top - padY) / frameHeight,
+            (boundingBox.right + padX) / frameWidth,
+            (boundingBox.bottom + padY) / frameHeight);
+        growTo(region, MIN_REGION_SIZE);
+        if (!region.intersect(0, 0, 1, 1)) return;
+
+        lastRegion = region;
+        lastRegionTime = SystemClock.elapsedRealtime();
+    }
+
+    void onMissed() {
+        if (++misses < MISSES_BEFORE_REFOCUS) return;
+
+        long now = SystemClock.elapsedRealtime();
+        if (now - lastRefocusTime < MIN_REFOCUS_INTERVAL_MS) return;
+
+        misses = 0;
+        lastRefocusTime = now;
+        if (lastRegion != null && now - lastRegionTime > REGION_EXPIRY_MS) {
+            lastRegion = null;
+        }
+        target.refocus(lastRegion);
+    }
+
+    private static void growTo(RectF region, float minSize) {
+        if (region.width() < minSize) {
+            region.inset((region.width() - minSize) / 2, 0);
+        }
+        if (region.height() < minSize) {
+            region.inset(0, (region.height() - minSize) / 2);
+        }
+    }
+}
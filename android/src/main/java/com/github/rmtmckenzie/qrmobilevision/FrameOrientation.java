@@ -0,0 +1,91 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.graphics.Point;
+import android.util.SparseArray;
+import android.view.Surface;
+
+import com.google.android.gms.vision.barcode.Barcode;
+
+/**
+ * How camera frames relate to upright, computed once per session from the
+ * sensor orientation and the display rotation. Frames are never rotated; the
+ * rotation is handed to the detector as frame metadata, and detected corner
+ * points are mapped back into sensor coordinates for the rest of the pipeline.
+ */
+class FrameOrientation {
+    static final FrameOrientation NONE = new FrameOrientation(0, Surface.ROTATION_0);
+
+    /**
+     * Clockwise rotation, in degrees, that turns a sensor frame upright.
+     */
+    final int rotationDegrees;
+
+    /**
+     * @param sensorOrientation - clockwise degrees from the sensor to the device's natural orientation
+     * @param displayRotation   - one of the Surface.ROTATION_* constants
+     */
+    FrameOrientation(int sensorOrientation, int displayRotation) {
+        int displayDegrees;
+        switch (displayRotation) {
+            case Surface.ROTATION_90:
+                displayDegrees = 90;
+                break;
+            case Surface.ROTATION_180:
+                displayDegrees = 180;
+                break;
+            case Surface.ROTATION_270:
+                displayDegrees = 270;
+                break;
+            default:
+                displayDegrees = 0;
+        }
+        // back-facing camera; the front camera isn't used
+        this.rotationDegrees = (sensorOrientation - displayDegrees + 360) % 360;
+    }
+
+    /**
+     * Rotation in the form expected by Frame.Builder.setRotation.
+     */
+    int frameRotation() {
+        return rotationDegrees / 90;
+    }
+
+    /**
+     * Maps corner points reported for an upright view of a sensor frame of the
+     * given size back into that frame's own coordinates, in place.
+     */
+    static void toSensor(SparseArray<Barcode> barcodes, int frameRotation, int width, int height) {
+        map(barcodes, frameRotation, width, height, true);
+    }
+
+    /**
+     * The inverse of toSensor: maps sensor frame coordinates to an upright view, in place.
+     */
+    static void toUpright(SparseArray<Barcode> barcodes, int frameRotation, int width, int height) {
+        map(barcodes, frameRotation, width, height, false);
+    }
+
+    private static void map(SparseArray<Barcode> barcodes, int frameRotation, int width, int height, boolean toSensor) {
+        if (frameRotation == 0) return;
+        for (int i = 0; i < barcodes.size(); ++i) {
+            Point[] corners = barcodes.valueAt(i).cornerPoints;
+            if (corners == null) continue;
+            for (Point point : corners) {
+                int x = point.x, y = point.y;
+                switch (frameRotation) {
+                    case 1:
+                        if (toSensor) point.set(y, height - 1 - x);
+                        else point.set(height - 1 - y, x);
+                        break;
+                    case 2:
+                        point.set(width - 1 - x, height - 1 - y);
+                        break;
+                    case 3:
+                        if (toSensor) point.set(width - 1 - y, x);
+                        else point.set(y, width - 1 - x);
+                        break;
+                }
+            }
+        }
+    }
+}
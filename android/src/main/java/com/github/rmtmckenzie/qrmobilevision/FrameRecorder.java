@@ -0,0 +1,213 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Appends camera frames, as they are handed to the detector, to a local file
+ * that FrameReplayer can play back later.
+ * <p>
+ * The file is a header, then one record per frame (timestamp, format, width,
+ * height, stride, rotation, length, bytes), then on close an index of record
+ * offsets followed by the index position and a trailing magic number. A file
+ * cut short by a crash has no index but can still be read front to back.
+ * <p>
+ * Frames are written on a background thread through a direct buffer, and are
+ * dropped rather than queued if the disk falls behind. Once the next frame
+ * would take the file past its size limit, recording stops and the file is
+ * finished with its index as if it had been closed there. Uses no Android APIs
+ * so that recordings can also be written and read on a plain JVM; problems are
+ * reported to the Logger it is given instead.
+ */
+class FrameRecorder {
+    static final String TAG = "c.g.r.FrameRecorder";
+
+    interface Logger {
+        void warn(String message, Throwable error);
+    }
+
+    static final int MAGIC = 0x51524652; // "QRFR"
+    static final int INDEX_MAGIC = 0x51524958; // "QRIX"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int RECORD_HEADER_SIZE = 8 + 6 * 4;
+
+    // same values as android.graphics.ImageFormat
+    static final int FORMAT_NV21 = 17;
+    static final int FORMAT_JPEG = 256;
+
+    // the largest file FAT32 storage, common on SD cards, can hold
+    static final long DEFAULT_MAX_BYTES = 0xffffffffL;
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_PENDING = 8;
+
+    private final long maxBytes;
+    private final Logger logger;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+    private final AtomicInteger pending = new AtomicInteger();
+    // only touched on the writer thread
+    private long[] offsets = new long[256];
+    private int count;
+    private long position;
+    private boolean full;
+
+    FrameRecorder(File output, Logger logger) throws IOException {
+        this(output, DEFAULT_MAX_BYTES, logger);
+    }
+
+    /**
+     * @param maxBytes - size the file, index included, is kept within
+     * @param logger   - told about frames that could not be recorded
+     */
+    FrameRecorder(File output, long maxBytes, Logger logger) throws IOException {
+        this.maxBytes = maxBytes;
+        this.logger = logger;
+        file = new RandomAccessFile(output, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        buffer.putInt(MAGIC).putInt(VERSION);
+        position = HEADER_SIZE;
+    }
+
+    /**
+     * Queues a frame to be written. The bytes must not be changed afterwards,
+     * which holds for the frames the detector is given.
+     */
+    void record(final byte[] bytes, final long timestampNanos, final int format, final int width,
+                final int height, final int stride, final int rotation) {
+        if (pending.incrementAndGet() > MAX_PENDING) {
+            pending.decrementAndGet();
+            return;
+        }
+        try {
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        write(bytes, timestampNanos, format, width, height, stride, rotation);
+                    } catch (IOException e) {
+                        logger.warn("Could not record frame", e);
+                    } finally {
+                        pending.decrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // already closed
+            pending.decrementAndGet();
+        }
+    }
+
+    /**
+     * Queues writing out the queued frames and the index and closing the
+     * file, without waiting for it, so that it can be called on the main thread.
+     */
+    synchronized void close() {
+        if (writer.isShutdown()) return;
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeIndex();
+                    flush();
+                    channel.force(false);
+                } catch (IOException e) {
+                    logger.warn("Could not finish recording", e);
+                } finally {
+                    try {
+                        file.close();
+                    } catch (IOException e) {
+                        logger.warn("Could not close recording", e);
+                    }
+                }
+            }
+        });
+        writer.shutdown();
+    }
+
+    /**
+     * Waits for close to finish the file, for readers on the same thread.
+     *
+     * @return false if it timed out
+     */
+    boolean awaitClosed(long timeout, TimeUnit unit) throws InterruptedException {
+        return writer.awaitTermination(timeout, unit);
+    }
+
+    private void write(byte[] bytes, long timestampNanos, int format, int width, int height, int stride,
+                       int rotation) throws IOException {
+        if (full) return;
+        // this record, and the index with it included
+        long needed = RECORD_HEADER_SIZE + bytes.length + 4 + 8L * (count + 1) + 12;
+        if (position + needed > maxBytes) {
+            full = true;
+            logger.warn("Recording reached " + maxBytes + " bytes, no more frames will be recorded", null);
+            return;
+        }
+        if (count == offsets.length) {
+            long[] grown = new long[count * 2];
+            System.arraycopy(offsets, 0, grown, 0, count);
+            offsets = grown;
+        }
+        offsets[count++] = position;
+
+        ensureSpace(RECORD_HEADER_SIZE);
+        buffer.putLong(timestampNanos)
+            .putInt(format)
+            .putInt(width)
+            .putInt(height)
+            .putInt(stride)
+            .putInt(rotation)
+            .putInt(bytes.length);
+
+        if (bytes.length > buffer.remaining()) {
+            flush();
+            writeFully(ByteBuffer.wrap(bytes));
+        } else {
+            buffer.put(bytes);
+        }
+        position += RECORD_HEADER_SIZE + bytes.length;
+    }
+
+    private void writeIndex() throws IOException {
+        long indexOffset = position;
+        ensureSpace(4);
+        buffer.putInt(count);
+        for (int i = 0; i < count; ++i) {
+            ensureSpace(8);
+            buffer.putLong(offsets[i]);
+        }
+        ensureSpace(12);
+        buffer.putLong(indexOffset).putInt(INDEX_MAGIC);
+    }
+
+    private void ensureSpace(int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            channel.write(source);
+        }
+    }
+}
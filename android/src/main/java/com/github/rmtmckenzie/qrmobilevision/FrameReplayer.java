@@ -0,0 +1,216 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays back a file written by FrameRecorder. Each frame's bytes are
+ * memory-mapped on their own, so recordings can be larger than a single
+ * mapping allows, and frames are handed to a Sink either at the timing they
+ * were recorded with or as fast as the sink takes them.
+ * <p>
+ * Uses no Android APIs so that recordings from the field can be replayed
+ * through a decoder on a desktop JVM.
+ */
+class FrameReplayer {
+    interface Sink {
+        void frame(RecordedFrame frame);
+    }
+
+    static class RecordedFrame {
+        final long timestampNanos;
+        final int format, width, height, stride, rotation;
+        // read-only view of the mapped frame bytes
+        final ByteBuffer data;
+
+        RecordedFrame(long timestampNanos, int format, int width, int height, int stride, int rotation,
+                      ByteBuffer data) {
+            this.timestampNanos = timestampNanos;
+            this.format = format;
+            this.width = width;
+            this.height = height;
+            this.stride = stride;
+            this.rotation = rotation;
+            this.data = data;
+        }
+
+        /**
+         * Copies the frame out of the mapped file, for sinks that need an array.
+         */
+        byte[] bytes() {
+            byte[] bytes = new byte[data.remaining()];
+            data.duplicate().get(bytes);
+            return bytes;
+        }
+    }
+
+    static class Stats {
+        final int frames;
+        final long elapsedNanos;
+        // time the sink took for each frame, sorted
+        final long[] sinkNanos;
+
+        Stats(int frames, long elapsedNanos, long[] sinkNanos) {
+            this.frames = frames;
+            this.elapsedNanos = elapsedNanos;
+            this.sinkNanos = sinkNanos;
+            Arrays.sort(this.sinkNanos);
+        }
+
+        double framesPerSecond() {
+            return elapsedNanos == 0 ? 0 : frames * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * @param percentile - 0 to 100
+         */
+        long sinkNanosAt(double percentile) {
+            if (sinkNanos.length == 0) return 0;
+            int index = (int) Math.ceil(percentile / 100 * sinkNanos.length) - 1;
+            return sinkNanos[Math.max(0, Math.min(sinkNanos.length - 1, index))];
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long size;
+    private final long[] offsets;
+
+    FrameReplayer(File recording) throws IOException {
+        file = new RandomAccessFile(recording, "r");
+        channel = file.getChannel();
+        try {
+            size = channel.size();
+            ByteBuffer header = read(0, FrameRecorder.HEADER_SIZE);
+            if (header == null || header.getInt(0) != FrameRecorder.MAGIC) {
+                throw new IOException("Not a frame recording: " + recording);
+            }
+            int version = header.getInt(4);
+            if (version != FrameRecorder.VERSION) {
+                throw new IOException("Unsupported frame recording version " + version);
+            }
+            offsets = readIndex();
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    int frameCount() {
+        return offsets.length;
+    }
+
+    /**
+     * Maps the frame's bytes. The frame stays readable after the replayer is closed.
+     */
+    RecordedFrame frame(int index) throws IOException {
+        long offset = offsets[index];
+        ByteBuffer header = read(offset, FrameRecorder.RECORD_HEADER_SIZE);
+        int length = header == null ? -1 : header.getInt(FrameRecorder.RECORD_HEADER_SIZE - 4);
+        if (length < 0 || offset + FrameRecorder.RECORD_HEADER_SIZE + length > size) {
+            throw new IOException("Frame " + index + " is cut short");
+        }
+        ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, offset + FrameRecorder.RECORD_HEADER_SIZE,
+            length);
+        return new RecordedFrame(
+            header.getLong(0),
+            header.getInt(8),
+            header.getInt(12),
+            header.getInt(16),
+            header.getInt(20),
+            header.getInt(24),
+            data.asReadOnlyBuffer());
+    }
+
+    void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Hands every frame to the sink in order.
+     *
+     * @param realtime - wait between frames as long as the camera did; otherwise go as fast as possible
+     */
+    Stats replay(Sink sink, boolean realtime) throws InterruptedException, IOException {
+        long[] sinkNanos = new long[offsets.length];
+        long start = System.nanoTime();
+        long firstTimestamp = 0;
+        for (int i = 0; i < offsets.length; ++i) {
+            RecordedFrame frame = frame(i);
+            if (realtime) {
+                if (i == 0) {
+                    firstTimestamp = frame.timestampNanos;
+                } else {
+                    long due = start + (frame.timestampNanos - firstTimestamp);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                }
+            }
+            long before = System.nanoTime();
+            sink.frame(frame);
+            sinkNanos[i] = System.nanoTime() - before;
+        }
+        return new Stats(offsets.length, System.nanoTime() - start, sinkNanos);
+    }
+
+    /**
+     * Reads the index written on close, or finds the records by walking the
+     * file if the recording was never closed.
+     */
+    private long[] readIndex() throws IOException {
+        ByteBuffer trailer = size >= FrameRecorder.HEADER_SIZE + 16 ? read(size - 12, 12) : null;
+        if (trailer != null && trailer.getInt(8) == FrameRecorder.INDEX_MAGIC) {
+            long indexOffset = trailer.getLong(0);
+            ByteBuffer countBuffer = read(indexOffset, 4);
+            int count = countBuffer == null ? -1 : countBuffer.getInt(0);
+            boolean valid = count >= 0 && count <= (size - indexOffset) / 8;
+            ByteBuffer index = valid ? read(indexOffset + 4, count * 8) : null;
+            if (index != null) {
+                long[] offsets = new long[count];
+                for (int i = 0; i < count; ++i) {
+                    offsets[i] = index.getLong(i * 8);
+                }
+                return offsets;
+            }
+        }
+
+        long[] offsets = new long[64];
+        int count = 0;
+        long position = FrameRecorder.HEADER_SIZE;
+        while (true) {
+            ByteBuffer header = read(position, FrameRecorder.RECORD_HEADER_SIZE);
+            if (header == null) break;
+            int length = header.getInt(FrameRecorder.RECORD_HEADER_SIZE - 4);
+            if (length < 0 || position + FrameRecorder.RECORD_HEADER_SIZE + length > size) {
+                // last record was only partly written
+                break;
+            }
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = position;
+            position += FrameRecorder.RECORD_HEADER_SIZE + length;
+        }
+        return Arrays.copyOf(offsets, count);
+    }
+
+    /**
+     * Reads length bytes at position, or returns null if the file ends first.
+     */
+    private ByteBuffer read(long position, int length) throws IOException {
+        if (position < 0 || position + length > size) return null;
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) return null;
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
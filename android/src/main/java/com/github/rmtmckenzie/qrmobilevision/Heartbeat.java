@@ -1,27 +1,57 @@
 package com.github.rmtmckenzie.qrmobilevision;
 
 import android.os.Handler;
+import android.os.SystemClock;
 
+/**
+ * Watchdog that runs the given runnable once no beat has been received for the
+ * timeout. A beat only records the time; the timeout is checked lazily, so
+ * beating doesn't touch the handler's queue.
+ */
 public class Heartbeat {
 
     private final Handler handler = new Handler();
     private final Runnable runner;
     private final int timeout;
+    private volatile long lastBeat;
+    private boolean running;
+
+    private final Runnable check = new Runnable() {
+        @Override
+        public void run() {
+            if (!running) return;
+            long idle = SystemClock.uptimeMillis() - lastBeat;
+            if (idle >= timeout) {
+                running = false;
+                runner.run();
+            } else {
+                handler.postDelayed(this, timeout - idle);
+            }
+        }
+    };
 
     public Heartbeat(int timeout, Runnable runner) {
         this.timeout = timeout;
         this.runner = runner;
 
-        handler.postDelayed(runner, timeout);
+        start();
     }
 
     public void beat() {
-        handler.removeCallbacks(runner);
-        handler.postDelayed(runner, timeout);
+        lastBeat = SystemClock.uptimeMillis();
+    }
+
+    public void start() {
+        beat();
+        if (!running) {
+            running = true;
+            handler.postDelayed(check, timeout);
+        }
     }
 
     public void stop() {
-        handler.removeCallbacks(runner);
+        running = false;
+        handler.removeCallbacks(check);
     }
 
 }
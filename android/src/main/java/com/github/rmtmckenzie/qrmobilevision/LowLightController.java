@@ -0,0 +1,182 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Decides when the scene is too dark to decode in, from the luma of preview
+ * frames or from the exposure the camera settled on, and turns the torch on
+ * (or, without one, raises exposure compensation) until it's bright again.
+ * <p>
+ * Switching needs a run of consistent samples and is rate limited, and the
+ * scene has to be much brighter to switch the torch off than it was dark to
+ * switch it on, since the torch itself brightens what the camera sees.
+ */
+class LowLightController {
+    interface Target {
+        /**
+         * @return false if the camera has no torch
+         */
+        boolean setTorch(boolean on);
+
+        /**
+         * Stops of exposure compensation on top of whatever the camera is otherwise using.
+         */
+        void setExposureBias(int stops);
+    }
+
+    interface Listener {
+        void lowLightChanged(boolean lowLight, boolean torchOn);
+    }
+
+    // mean luma thresholds, 0-255
+    private static final float DARK_LUMA = 45;
+    private static final float BRIGHT_LUMA = 70;
+    private static final float BRIGHT_LUMA_WITH_TORCH = 150;
+    // fraction of near-black samples that makes a frame dark whatever its mean
+    private static final float DARK_FRACTION = 0.85f;
+    private static final int NEAR_BLACK = 32;
+
+    // exposure index thresholds, in milliseconds of exposure at ISO 100
+    private static final float DARK_EXPOSURE = 33 * 8;
+    private static final float BRIGHT_EXPOSURE = 100;
+    private static final float BRIGHT_EXPOSURE_WITH_TORCH = 20;
+
+    private static final int SAMPLES_TO_SWITCH = 10;
+    private static final int FRAME_SAMPLE_INTERVAL = 5;
+    private static final int DECIMATION = 8;
+    private static final long MIN_SWITCH_INTERVAL_MS = 3000;
+
+    private final Target target;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private Listener listener;
+    private boolean auto;
+    private boolean manual;
+    private boolean lowLight;
+    private boolean torchOn;
+    private int darkRun, brightRun;
+    private int frameCount;
+    private long lastSwitch;
+
+    LowLightController(Target target) {
+        this.target = target;
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Whether samples may switch the torch, until a manual setTorch. Takes
+     * over the torch as it was left, so that one turned on by hand counts as
+     * switched on for low light and goes off once the scene is bright.
+     */
+    synchronized void setAuto(boolean auto) {
+        this.auto = auto;
+        this.manual = false;
+        darkRun = brightRun = 0;
+        if (lowLight == torchOn) return;
+        if (lowLight) {
+            // compensation may have been raised in place of a torch
+            target.setExposureBias(0);
+        }
+        lowLight = torchOn;
+        notifyListener();
+    }
+
+    /**
+     * Turns the torch on or off and stops automatic control.
+     *
+     * @return false if the camera has no torch
+     */
+    synchronized boolean setTorch(boolean on) {
+        manual = true;
+        boolean available = target.setTorch(on);
+        torchOn = available && on;
+        notifyListener();
+        return available;
+    }
+
+    /**
+     * Samples the luma plane of an NV21 frame, on a sparse grid and only every few frames.
+     */
+    void onFrame(byte[] nv21, int width, int height) {
+        if (!auto || manual || ++frameCount % FRAME_SAMPLE_INTERVAL != 0) return;
+
+        long sum = 0;
+        int samples = 0, nearBlack = 0;
+        for (int y = DECIMATION / 2; y < height; y += DECIMATION) {
+            int row = y * width;
+            for (int x = DECIMATION / 2; x < width; x += DECIMATION) {
+                int luma = nv21[row + x] & 0xff;
+                sum += luma;
+                if (luma < NEAR_BLACK) ++nearBlack;
+                ++samples;
+            }
+        }
+        if (samples == 0) return;
+        float mean = (float) sum / samples;
+        boolean dark = mean < DARK_LUMA || nearBlack > samples * DARK_FRACTION;
+        boolean bright = mean > (torchOn ? BRIGHT_LUMA_WITH_TORCH : BRIGHT_LUMA);
+        sample(dark, bright);
+    }
+
+    /**
+     * Samples the exposure time and sensitivity the camera's auto exposure settled on.
+     */
+    void onExposure(long exposureNanos, int sensitivity) {
+        if (!auto || manual || ++frameCount % FRAME_SAMPLE_INTERVAL != 0) return;
+        float index = exposureNanos / 1e6f * sensitivity / 100f;
+        boolean dark = index > DARK_EXPOSURE;
+        boolean bright = index < (torchOn ? BRIGHT_EXPOSURE_WITH_TORCH : BRIGHT_EXPOSURE);
+        sample(dark, bright);
+    }
+
+    synchronized void reset() {
+        darkRun = brightRun = 0;
+        frameCount = 0;
+    }
+
+    private synchronized void sample(boolean dark, boolean bright) {
+        if (!auto || manual) return;
+        darkRun = dark ? darkRun + 1 : 0;
+        brightRun = bright ? brightRun + 1 : 0;
+
+        long now = SystemClock.elapsedRealtime();
+        if (now - lastSwitch < MIN_SWITCH_INTERVAL_MS) return;
+
+        if (!lowLight && darkRun >= SAMPLES_TO_SWITCH) {
+            lowLight = true;
+            torchOn = target.setTorch(true);
+            if (!torchOn) {
+                target.setExposureBias(1);
+            }
+        } else if (lowLight && brightRun >= SAMPLES_TO_SWITCH) {
+            lowLight = false;
+            if (torchOn) {
+                target.setTorch(false);
+                torchOn = false;
+            } else {
+                target.setExposureBias(0);
+            }
+        } else {
+            return;
+        }
+        lastSwitch = now;
+        darkRun = brightRun = 0;
+        notifyListener();
+    }
+
+    private void notifyListener() {
+        final Listener listener = this.listener;
+        if (listener == null) return;
+        final boolean lowLight = this.lowLight, torchOn = this.torchOn;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.lowLightChanged(lowLight, torchOn);
+            }
+        });
+    }
+}
@@ -1,9 +1,35 @@
 package com.github.rmtmckenzie.qrmobilevision;
 
-interface QrCamera {
+import android.graphics.RectF;
+
+interface QrCamera extends LowLightController.Target {
     void start() throws QrReader.Exception;
     void stop();
     int getOrientation();
     int getWidth();
     int getHeight();
+
+    /**
+     * Favour short exposures and high frame rates over image quality, for codes
+     * moving past the camera. Must be called before start.
+     */
+    void useMotionMode();
+
+    /**
+     * Have the camera itself crop to the given window, normalized to [0, 1] in
+     * sensor orientation, so that frames show only that area at a higher
+     * resolution. Must be called before start.
+     */
+    void useSensorCrop(RectF window);
+
+    /**
+     * Hand the camera's own frame buffers to the detector instead of copying
+     * them, and only take them back once decoding is done. Must be called before start.
+     */
+    void useZeroCopy();
+
+    /**
+     * Feeds the controller brightness samples while running.
+     */
+    void setLowLightController(LowLightController controller);
 }
@@ -1,40 +1,51 @@
 package com.github.rmtmckenzie.qrmobilevision;
 
 import android.annotation.TargetApi;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.hardware.Camera.Size;
-import android.os.AsyncTask;
-import android.os.Handler;
 import android.util.Log;
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Implements QrCamera using Deprecated Camera API
  */
 @TargetApi(16)
 @SuppressWarnings("deprecation")
-class QrCameraC1 implements QrCamera {
+class QrCameraC1 implements QrCamera, FocusScheduler.Target {
 
     private static final String TAG = "c.g.r.QrCameraC1";
     private final SurfaceTexture texture;
     private final QrDetector detector;
     private Camera.CameraInfo info = new Camera.CameraInfo();
     private int targetWidth, targetHeight;
+    private final int displayRotation;
     private Camera camera = null;
     private Camera.Parameters parameters;
-    private static final long AUTO_FOCUS_INTERVAL_MS = 2000L;
-    private AsyncTask<?,?,?> outstandingTask;
+    private static final int AREA_WEIGHT = 1000;
+    private final FocusScheduler focusScheduler = new FocusScheduler(this);
     private boolean stopped;
     private boolean focusing;
+    private boolean motionMode;
+    private RectF cropWindow;
+    private LowLightController lowLight;
+    private boolean torchOn;
+    // whether the back camera has a torch, known once it has been opened
+    private Boolean torchSupported;
+    private int baseCompensation, exposureBias;
+    private int previewWidth, previewHeight;
 
-    QrCameraC1(int width, int height, SurfaceTexture texture, QrDetector detector) {
+    QrCameraC1(int width, int height, SurfaceTexture texture, QrDetector detector, int displayRotation) {
         this.texture = texture;
+        this.displayRotation = displayRotation;
         targetHeight = height;
         targetWidth = width;
         this.detector = detector;
+        detector.setFocusScheduler(focusScheduler);
     }
 
     @Override
@@ -54,6 +65,8 @@ class QrCameraC1 implements QrCamera {
         }
 
         parameters = camera.getParameters();
+        List<String> flashModes = parameters.getSupportedFlashModes();
+        torchSupported = flashModes != null && flashModes.contains(Camera.Parameters.FLASH_MODE_TORCH);
 
         List<String> focusModes = parameters.getSupportedFocusModes();
         if (focusModes.contains(Camera.Parameters.FOCUS_MODE_AUTO)) {
@@ -70,55 +83,186 @@ class QrCameraC1 implements QrCamera {
 
         texture.setDefaultBufferSize(size.width, size.height);
 
+        previewWidth = size.width;
+        previewHeight = size.height;
         detector.useNV21(size.width, size.height);
+        detector.useOrientation(new FrameOrientation(info.orientation, displayRotation));
 
         try {
             camera.setPreviewCallback(new Camera.PreviewCallback() {
                 @Override
                 public void onPreviewFrame(byte[] data, Camera camera) {
-                    if (data != null) detector.detect(data);
-                    else System.out.println("It's NULL!");
+                    if (data != null) {
+                        detector.detect(data);
+                        if (lowLight != null) {
+                            lowLight.onFrame(data, previewWidth, previewHeight);
+                        }
+                    } else {
+                        Log.w(TAG, "Preview frame without data");
+                    }
                 }
             });
             camera.setPreviewTexture(texture);
             camera.setDisplayOrientation(180);
-            autoFocusAgainLater();
+            focusScheduler.reset();
+            if (motionMode) {
+                applyMotionMode();
+            }
+            if (cropWindow != null) {
+                applyZoom();
+            }
+            if (torchOn) {
+                setTorch(true);
+            }
+            if (exposureBias != 0) {
+                setExposureBias(exposureBias);
+            }
+            if (lowLight != null) {
+                lowLight.reset();
+            }
             camera.startPreview();
+            refocus(null);
         } catch (IOException e) {
             e.printStackTrace();
         }
 
     }
 
-    Camera.AutoFocusCallback cb = new Camera.AutoFocusCallback() {
-        @Override
-        public void onAutoFocus(boolean success, Camera camera) {
-            focusing = false;
-            autoFocusAgainLater();
-        }
-    };
+    @Override
+    public void useMotionMode() {
+        motionMode = true;
+    }
 
-    private synchronized void autoFocusAgainLater() {
-        if (!stopped && outstandingTask == null) {
-            AutoFocusTask newTask = new AutoFocusTask();
-            try {
-                newTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
-                outstandingTask = newTask;
-            } catch (RejectedExecutionException ree) {
-                Log.w(TAG, "Could not request auto focus", ree);
+    /**
+     * The closest Camera1 gets to capping exposure: the action scene where there
+     * is one, the fastest preview frame rate range, and a stop of negative
+     * exposure compensation so that auto exposure picks shorter exposures.
+     */
+    private void applyMotionMode() {
+        try {
+            Camera.Parameters current = camera.getParameters();
+            List<String> sceneModes = current.getSupportedSceneModes();
+            if (sceneModes != null && sceneModes.contains(Camera.Parameters.SCENE_MODE_ACTION)) {
+                current.setSceneMode(Camera.Parameters.SCENE_MODE_ACTION);
+            } else if (sceneModes != null && sceneModes.contains(Camera.Parameters.SCENE_MODE_SPORTS)) {
+                current.setSceneMode(Camera.Parameters.SCENE_MODE_SPORTS);
             }
+
+            int[] fastest = null;
+            List<int[]> fpsRanges = current.getSupportedPreviewFpsRange();
+            if (fpsRanges != null) {
+                for (int[] range : fpsRanges) {
+                    if (fastest == null
+                        || range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] > fastest[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]
+                        || (range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] == fastest[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]
+                        && range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX] > fastest[Camera.Parameters.PREVIEW_FPS_MIN_INDEX])) {
+                        fastest = range;
+                    }
+                }
+            }
+            if (fastest != null) {
+                current.setPreviewFpsRange(fastest[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+                    fastest[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+            }
+
+            float step = current.getExposureCompensationStep();
+            if (step > 0) {
+                baseCompensation = Math.max(current.getMinExposureCompensation(), Math.round(-1 / step));
+                current.setExposureCompensation(baseCompensation);
+            }
+            camera.setParameters(current);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not apply motion mode settings", e);
+        }
+    }
+
+    @Override
+    public void setLowLightController(LowLightController controller) {
+        lowLight = controller;
+    }
+
+    @Override
+    public boolean setTorch(boolean on) {
+        if (torchSupported == null || !torchSupported) {
+            // without opening the camera there's no telling, so say there's none until it has been
+            torchOn = false;
+            return false;
+        }
+        torchOn = on;
+        if (camera == null || stopped) return true;
+        try {
+            Camera.Parameters current = camera.getParameters();
+            current.setFlashMode(on ? Camera.Parameters.FLASH_MODE_TORCH : Camera.Parameters.FLASH_MODE_OFF);
+            camera.setParameters(current);
+            return true;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not switch torch", e);
+            return false;
+        }
+    }
+
+    @Override
+    public void setExposureBias(int stops) {
+        exposureBias = stops;
+        if (camera == null || stopped) return;
+        try {
+            Camera.Parameters current = camera.getParameters();
+            float step = current.getExposureCompensationStep();
+            if (step <= 0) return;
+            int compensation = baseCompensation + Math.round(stops / step);
+            current.setExposureCompensation(Math.max(current.getMinExposureCompensation(),
+                Math.min(current.getMaxExposureCompensation(), compensation)));
+            camera.setParameters(current);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not set exposure compensation", e);
         }
     }
 
-    private synchronized void cancelOutstandingTask() {
-        if (outstandingTask != null) {
-            if (outstandingTask.getStatus() != AsyncTask.Status.FINISHED) {
-                outstandingTask.cancel(true);
+    @Override
+    public void useZeroCopy() {
+        // preview callbacks already hand over a fresh array per frame that nothing else touches
+    }
+
+    @Override
+    public void useSensorCrop(RectF window) {
+        cropWindow = window;
+    }
+
+    /**
+     * Camera1 can't crop to an arbitrary window, only zoom about the centre, so
+     * this zooms in as far as keeps the whole window in view.
+     */
+    private void applyZoom() {
+        try {
+            Camera.Parameters current = camera.getParameters();
+            if (!current.isZoomSupported()) return;
+            // how far the window's farthest edge is from the centre, as a fraction of the half frame
+            float reach = Math.max(
+                Math.max(Math.abs(cropWindow.left - 0.5f), Math.abs(cropWindow.right - 0.5f)),
+                Math.max(Math.abs(cropWindow.top - 0.5f), Math.abs(cropWindow.bottom - 0.5f))) * 2;
+            float wanted = reach <= 0 ? 1 : 1 / reach;
+
+            // ratios are in hundredths, in ascending order
+            List<Integer> ratios = current.getZoomRatios();
+            int zoom = 0;
+            for (int i = 0; i < ratios.size() && i <= current.getMaxZoom(); ++i) {
+                if (ratios.get(i) / 100f <= wanted) {
+                    zoom = i;
+                }
             }
-            outstandingTask = null;
+            current.setZoom(zoom);
+            camera.setParameters(current);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not apply zoom", e);
         }
     }
 
+    Camera.AutoFocusCallback cb = new Camera.AutoFocusCallback() {
+        @Override
+        public void onAutoFocus(boolean success, Camera camera) {
+            focusing = false;
+        }
+    };
 
     @Override
     public int getWidth() {
@@ -138,7 +282,7 @@ class QrCameraC1 implements QrCamera {
     @Override
     public void stop() {
         stopped = true;
-        cancelOutstandingTask();
+        focusing = false;
         camera.stopPreview();
         camera.setPreviewCallback(null);
         camera.release();
@@ -192,31 +336,36 @@ class QrCameraC1 implements QrCamera {
         return s;
     }
 
-    synchronized void startFocus() {
-        outstandingTask = null;
-        if (!stopped && !focusing) {
-            try {
-                camera.autoFocus(cb);
-                focusing = true;
-            } catch (RuntimeException re) {
-                // Have heard RuntimeException reported in Android 4.0.x+; continue?
-                Log.w(TAG, "Unexpected exception while focusing", re);
-                // Try again later to keep cycle going
-                autoFocusAgainLater();
+    @Override
+    public void refocus(RectF region) {
+        if (stopped || focusing || camera == null) return;
+        try {
+            Camera.Parameters current = camera.getParameters();
+            if (current.getMaxNumFocusAreas() > 0 || current.getMaxNumMeteringAreas() > 0) {
+                List<Camera.Area> areas = region == null ? null : Collections.singletonList(toArea(region));
+                if (current.getMaxNumFocusAreas() > 0) {
+                    current.setFocusAreas(areas);
+                }
+                if (current.getMaxNumMeteringAreas() > 0) {
+                    current.setMeteringAreas(areas);
+                }
+                camera.setParameters(current);
             }
+            camera.autoFocus(cb);
+            focusing = true;
+        } catch (RuntimeException re) {
+            // Have heard RuntimeException reported in Android 4.0.x+; the scheduler will ask again
+            Log.w(TAG, "Unexpected exception while focusing", re);
         }
     }
 
-    private final class AutoFocusTask extends AsyncTask<Object,Object,Object> {
-        @Override
-        protected Object doInBackground(Object... voids) {
-            try {
-                Thread.sleep(AUTO_FOCUS_INTERVAL_MS);
-            } catch (InterruptedException e) {
-                // continue
-            }
-            startFocus();
-            return null;
-        }
+    // Camera.Area coordinates go from -1000 to 1000 in sensor orientation
+    private static Camera.Area toArea(RectF region) {
+        Rect rect = new Rect(
+            Math.round(region.left * 2000) - 1000,
+            Math.round(region.top * 2000) - 1000,
+            Math.round(region.right * 2000) - 1000,
+            Math.round(region.bottom * 2000) - 1000);
+        return new Camera.Area(rect, AREA_WEIGHT);
     }
 }
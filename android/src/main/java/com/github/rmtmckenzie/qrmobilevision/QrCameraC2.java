@@ -3,16 +3,22 @@ package com.github.rmtmckenzie.qrmobilevision;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.*;
+import android.hardware.camera2.params.MeteringRectangle;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.media.ImageReader;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 import androidx.annotation.NonNull;
 import android.util.Log;
+import android.util.Range;
+import android.util.Rational;
 import android.util.Size;
 import android.util.SparseIntArray;
 import android.view.Surface;
@@ -20,6 +26,7 @@ import android.view.Surface;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static android.hardware.camera2.CameraMetadata.LENS_FACING_BACK;
 
@@ -27,9 +34,11 @@ import static android.hardware.camera2.CameraMetadata.LENS_FACING_BACK;
  * Implements QrCamera using Camera2 API
  */
 @TargetApi(21)
-class QrCameraC2 implements QrCamera {
+class QrCameraC2 implements QrCamera, FocusScheduler.Target {
 
     private static final String TAG = "c.g.r.QrCameraC2";
+    // longest exposure allowed in motion mode, 1/500s
+    private static final long MOTION_MAX_EXPOSURE_NS = 2000000L;
     private static final SparseIntArray ORIENTATIONS = new SparseIntArray();
 
     static {
@@ -45,31 +54,67 @@ class QrCameraC2 implements QrCamera {
     private final SurfaceTexture texture;
     private Size size;
     private ImageReader reader;
+    // only touched on the main thread, like everything that changes the repeating request
     private CaptureRequest.Builder previewBuilder;
     private CameraCaptureSession previewSession;
     private Size jpegSizes[] = null;
+    private Size yuvSizes[] = null;
+    private boolean zeroCopy;
+    // set while a frame is posted to the background thread but not yet acquired
+    private final AtomicBoolean imagePending = new AtomicBoolean();
+    // images handed to the detector and not yet given back, and readers that
+    // were stopped while that was more than none; guarded by this
+    private int heldImages;
+    // how many images decoding may hold at once, leaving the rest to the camera
+    private int imageBudget;
+    private final List<ImageReader> retiredReaders = new ArrayList<>();
     private QrDetector detector;
     private int orientation;
+    private final int displayRotation;
     private CameraDevice cameraDevice;
 
     private Integer mLastAfState = null;
-    private static final long LOCK_FOCUS_DELAY_ON_FOCUSED = 2000;
-    private static final long LOCK_FOCUS_DELAY_ON_UNFOCUSED = 1000;
-    private Handler mUiHandler = new Handler(); // UI handler
+    private final FocusScheduler focusScheduler = new FocusScheduler(this);
+    private Rect activeArraySize;
+    private int maxAfRegions, maxAeRegions;
     private HandlerThread mBackgroundThread;
+    private final CaptureSettleTracker settleTracker = new CaptureSettleTracker();
     private Handler mBackgroundHandler;
-    private Runnable mLockAutoFocusRunnable = new Runnable() {
-        @Override
-        public void run() {
-            lockAutoFocus();
-        }
-    };
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private boolean motionMode;
+    private CameraCharacteristics characteristics;
+    private Range<Long> exposureTimeRange;
+    private Range<Integer> sensitivityRange;
+    private Range<Integer> motionFpsRange;
+    private RectF cropWindow;
+    private LowLightController lowLight;
+    private boolean torchOn;
+    private int baseCompensation, exposureBias;
+    private Rect cropRegion;
+    // set once auto exposure has been metered and, if needed, replaced by a capped manual exposure
+    private boolean exposureCapped;
     private Runnable mBackgroundHandlerRunnable = new Runnable() {
         @Override
         public void run() {
-            try (Image image = reader.acquireLatestImage()) {
-                if (image == null)
+            imagePending.set(false);
+            Image acquired;
+            try {
+                acquired = reader.acquireLatestImage();
+            } catch (IllegalStateException e) {
+                // every image is still held by decoding; skip until one is given back
+                return;
+            }
+            if (acquired == null) return;
+            if (zeroCopy) {
+                handOver(acquired);
+                return;
+            }
+
+            try (Image image = acquired) {
+                if (!settleTracker.isSettled(image.getTimestamp())) {
+                    // captured while focus, exposure or lens was still moving; not worth decoding
                     return;
+                }
                 Image.Plane[] planes = image.getPlanes();
 
 //                    ByteBuffer b1 = planes[0].getBuffer(),
@@ -85,13 +130,89 @@ class QrCameraC2 implements QrCamera {
 //                    bAll.put(b3);
 //                    bAll.put(b2);
 
-                detector.detect(bytes);
+                detector.detect(bytes, image.getTimestamp());
             } catch (Throwable t) {
                 t.printStackTrace();
             }
         }
     };
 
+    /**
+     * Gives the detector the image's luma plane as it is, closing the image
+     * once the detector is done with it. The frame is skipped if decoding
+     * already holds as many images as the reader was sized for, which can
+     * happen once sessions are attached after it was created.
+     */
+    private void handOver(final Image image) {
+        if (!settleTracker.isSettled(image.getTimestamp())) {
+            image.close();
+            return;
+        }
+        synchronized (this) {
+            if (heldImages >= imageBudget) {
+                image.close();
+                return;
+            }
+            ++heldImages;
+        }
+        final AtomicBoolean returned = new AtomicBoolean();
+        Runnable giveBack = new Runnable() {
+            @Override
+            public void run() {
+                if (returned.compareAndSet(false, true)) {
+                    image.close();
+                    imageReturned();
+                }
+            }
+        };
+        ByteBuffer buffer;
+        int rowStride;
+        try {
+            Image.Plane luma = image.getPlanes()[0];
+            buffer = luma.getBuffer();
+            rowStride = luma.getRowStride();
+        } catch (Throwable t) {
+            t.printStackTrace();
+            giveBack.run();
+            return;
+        }
+        // from here on the detector gives the image back, once no worker holds it
+        try {
+            detector.detect(buffer, rowStride, image.getTimestamp(), giveBack);
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+    }
+
+    private void imageReturned() {
+        List<ImageReader> closing = null;
+        synchronized (this) {
+            if (--heldImages == 0 && !retiredReaders.isEmpty()) {
+                closing = new ArrayList<>(retiredReaders);
+                retiredReaders.clear();
+            }
+        }
+        if (closing != null) {
+            for (ImageReader retired : closing) {
+                retired.close();
+            }
+        }
+    }
+
+    /**
+     * Closes the reader, or if the detector still holds some of its images,
+     * leaves it for the last of them to close, since closing it frees their buffers.
+     */
+    private void closeReader() {
+        synchronized (this) {
+            if (heldImages > 0) {
+                retiredReaders.add(reader);
+                return;
+            }
+        }
+        reader.close();
+    }
+
     private CameraCaptureSession.CaptureCallback mCaptureCallback = new CameraCaptureSession.CaptureCallback() {
 
         private void process(CaptureResult result) {
@@ -105,27 +226,21 @@ class QrCameraC2 implements QrCamera {
                     case CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN:
                         Log.d(TAG, "CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN");
                         break;
+                    // refocusing once locked is left to the FocusScheduler, which
+                    // asks for it when detections stop coming through
                     case CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED:
                         Log.d(TAG, "CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED");
-                        mUiHandler.removeCallbacks(mLockAutoFocusRunnable);
-                        mUiHandler.postDelayed(mLockAutoFocusRunnable, LOCK_FOCUS_DELAY_ON_FOCUSED);
                         break;
                     case CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED:
-                        mUiHandler.removeCallbacks(mLockAutoFocusRunnable);
-                        mUiHandler.postDelayed(mLockAutoFocusRunnable, LOCK_FOCUS_DELAY_ON_UNFOCUSED);
                         Log.d(TAG, "CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED");
                         break;
                     case CaptureResult.CONTROL_AF_STATE_PASSIVE_UNFOCUSED:
-                        mUiHandler.removeCallbacks(mLockAutoFocusRunnable);
-                        //mUiHandler.postDelayed(mLockAutoFocusRunnable, LOCK_FOCUS_DELAY_ON_UNFOCUSED);
                         Log.d(TAG, "CaptureResult.CONTROL_AF_STATE_PASSIVE_UNFOCUSED");
                         break;
                     case CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN:
                         Log.d(TAG, "CaptureResult.CONTROL_AF_STATE_PASSIVE_SCAN");
                         break;
                     case CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED:
-                        mUiHandler.removeCallbacks(mLockAutoFocusRunnable);
-                        //mUiHandler.postDelayed(mLockAutoFocusRunnable, LOCK_FOCUS_DELAY_ON_FOCUSED);
                         Log.d(TAG, "CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED");
                         break;
                 }
@@ -134,26 +249,51 @@ class QrCameraC2 implements QrCamera {
         }
 
         @Override
-        public void onCaptureProgressed(@NonNull CameraCaptureSession session,
+        public void onCaptureProgressed(@NonNull final CameraCaptureSession session,
                                         @NonNull CaptureRequest request,
-                                        @NonNull CaptureResult partialResult) {
-            process(partialResult);
+                                        @NonNull final CaptureResult partialResult) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (session != previewSession) return;
+                    process(partialResult);
+                }
+            });
         }
 
         @Override
-        public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+        public void onCaptureCompleted(@NonNull final CameraCaptureSession session,
                                        @NonNull CaptureRequest request,
-                                       @NonNull TotalCaptureResult result) {
-            process(result);
+                                       @NonNull final TotalCaptureResult result) {
+            settleTracker.record(result);
+            // everything below can change the repeating request, which refocus,
+            // setTorch and the rest change on the main thread
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (session != previewSession) return;
+                    process(result);
+                    capExposure(result);
+                    if (lowLight != null) {
+                        Long exposure = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+                        Integer sensitivity = result.get(CaptureResult.SENSOR_SENSITIVITY);
+                        if (exposure != null && sensitivity != null) {
+                            lowLight.onExposure(exposure, sensitivity);
+                        }
+                    }
+                }
+            });
         }
     };
 
-    QrCameraC2(int width, int height, Context context, SurfaceTexture texture, QrDetector detector) {
+    QrCameraC2(int width, int height, Context context, SurfaceTexture texture, QrDetector detector, int displayRotation) {
+        this.displayRotation = displayRotation;
         this.targetWidth = width;
         this.targetHeight = height;
         this.context = context;
         this.texture = texture;
         this.detector = detector;
+        detector.setFocusScheduler(focusScheduler);
     }
 
     @Override
@@ -166,6 +306,17 @@ class QrCameraC2 implements QrCamera {
         return size.getHeight();
     }
 
+    private static String backCameraId(CameraManager manager) throws CameraAccessException {
+        String cameraId = null;
+        for (String id : manager.getCameraIdList()) {
+            Integer facing = manager.getCameraCharacteristics(id).get(CameraCharacteristics.LENS_FACING);
+            if (facing != null && facing == LENS_FACING_BACK) {
+                cameraId = id;
+            }
+        }
+        return cameraId;
+    }
+
     @Override
     public int getOrientation() {
         return orientation;
@@ -176,17 +327,9 @@ class QrCameraC2 implements QrCamera {
         startBackgroundThread();
         CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
 
-        String cameraId = null;
+        String cameraId;
         try {
-            String[] cameraIdList = manager.getCameraIdList();
-            for (String id : cameraIdList) {
-                CameraCharacteristics cameraCharacteristics = manager.getCameraCharacteristics(id);
-                Integer integer = cameraCharacteristics.get(CameraCharacteristics.LENS_FACING);
-                if (integer != null && integer == LENS_FACING_BACK) {
-                    cameraId = id;
-
-                }
-            }
+            cameraId = backCameraId(manager);
         } catch (CameraAccessException e) {
             Log.w(TAG, "Error getting back camera.", e);
             throw new RuntimeException(e);
@@ -198,15 +341,26 @@ class QrCameraC2 implements QrCamera {
         }
 
         try {
-            CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
+            characteristics = manager.getCameraCharacteristics(cameraId);
             StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-            // it seems as though the orientation is already corrected, so setting to 0
-            // orientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+            // the preview texture appears to already be corrected, so the orientation
+            // reported for it stays 0; the frames sent for detection are not, and are
+            // described by the sensor orientation instead.
             orientation = 0;
+            Integer sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+            detector.useOrientation(new FrameOrientation(sensorOrientation == null ? 0 : sensorOrientation, displayRotation));
+
+            activeArraySize = characteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+            Integer afRegions = characteristics.get(CameraCharacteristics.CONTROL_MAX_REGIONS_AF);
+            Integer aeRegions = characteristics.get(CameraCharacteristics.CONTROL_MAX_REGIONS_AE);
+            maxAfRegions = afRegions == null ? 0 : afRegions;
+            maxAeRegions = aeRegions == null ? 0 : aeRegions;
+            focusScheduler.reset();
 
             size = getAppropriateSize(map.getOutputSizes(SurfaceTexture.class));
             //size = map.getOutputSizes(SurfaceTexture.class)[0];
             jpegSizes = map.getOutputSizes(ImageFormat.JPEG);
+            yuvSizes = map.getOutputSizes(ImageFormat.YUV_420_888);
 
             final boolean finalSupportsAutoFocus = isAutoFocusSupported(cameraId);
             final String cameraNewId = cameraId;
@@ -268,6 +422,40 @@ class QrCameraC2 implements QrCamera {
         }
     }
 
+    @Override
+    public void refocus(RectF region) {
+        if (previewBuilder == null || previewSession == null) return;
+
+        MeteringRectangle[] regions = null;
+        // frames only show the crop region when there is one
+        Rect frameArea = cropRegion != null ? cropRegion : activeArraySize;
+        if (region != null && frameArea != null) {
+            int arrayWidth = frameArea.width(), arrayHeight = frameArea.height();
+            Rect rect = new Rect(
+                frameArea.left + Math.round(region.left * arrayWidth),
+                frameArea.top + Math.round(region.top * arrayHeight),
+                frameArea.left + Math.round(region.right * arrayWidth),
+                frameArea.top + Math.round(region.bottom * arrayHeight));
+            regions = new MeteringRectangle[]{new MeteringRectangle(rect, MeteringRectangle.METERING_WEIGHT_MAX)};
+        }
+
+        try {
+            // detections stopped coming through, so the light may have changed
+            remeter();
+            if (maxAfRegions > 0) {
+                previewBuilder.set(CaptureRequest.CONTROL_AF_REGIONS, regions);
+            }
+            if (maxAeRegions > 0) {
+                previewBuilder.set(CaptureRequest.CONTROL_AE_REGIONS, regions);
+            }
+            previewSession.setRepeatingRequest(previewBuilder.build(), mCaptureCallback, mBackgroundHandler);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+            return;
+        }
+        lockAutoFocus();
+    }
+
     /**
      * @return
      */
@@ -341,19 +529,34 @@ class QrCameraC2 implements QrCamera {
     private void startCamera(boolean supportsAutofocus, String cameraId) {
         List<Surface> list = new ArrayList<>();
 
-        Size jpegSize = getAppropriateSize(jpegSizes);
+        if (zeroCopy) {
+            Size yuvSize = getAppropriateSize(yuvSizes);
+            // one image per frame decoding can hold, one for the camera to fill
+            // and one that acquireLatestImage needs to skip ahead with
+            synchronized (this) {
+                imageBudget = detector.maxFramesInFlight();
+            }
+            reader = ImageReader.newInstance(yuvSize.getWidth(), yuvSize.getHeight(), ImageFormat.YUV_420_888,
+                imageBudget + 2);
+            detector.useNV21(yuvSize.getWidth(), yuvSize.getHeight());
+        } else {
+            Size jpegSize = getAppropriateSize(jpegSizes);
 
-        int width = jpegSize.getWidth(), height = jpegSize.getHeight();
+            int width = jpegSize.getWidth(), height = jpegSize.getHeight();
 
-        reader = ImageReader.newInstance(width, height, ImageFormat.JPEG, 2);
+            reader = ImageReader.newInstance(width, height, ImageFormat.JPEG, 2);
+        }
         list.add(reader.getSurface());
+        cropRegion = cropWindow == null || activeArraySize == null ? null
+            : sensorCropRegion(cropWindow, reader.getWidth(), reader.getHeight());
 
 
         ImageReader.OnImageAvailableListener imageAvailableListener = new ImageReader.OnImageAvailableListener() {
 
             @Override
             public void onImageAvailable(ImageReader reader) {
-                if(mBackgroundHandler!=null){
+                // acquireLatestImage picks up whatever arrived meanwhile, so one post is enough
+                if (mBackgroundHandler != null && imagePending.compareAndSet(false, true)) {
                     mBackgroundHandler.post(mBackgroundHandlerRunnable);
                 }
             }
@@ -372,6 +575,21 @@ class QrCameraC2 implements QrCamera {
                 previewBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CaptureRequest.CONTROL_AF_TRIGGER_START);
             }
             previewBuilder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
+            if (motionMode) {
+                applyMotionMode();
+            }
+            if (cropRegion != null) {
+                previewBuilder.set(CaptureRequest.SCALER_CROP_REGION, cropRegion);
+            }
+            if (torchOn && hasTorch()) {
+                previewBuilder.set(CaptureRequest.FLASH_MODE, CaptureRequest.FLASH_MODE_TORCH);
+            }
+            if (exposureBias != 0) {
+                previewBuilder.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, compensationFor(exposureBias));
+            }
+            if (lowLight != null) {
+                lowLight.reset();
+            }
 //            previewBuilder.set(CaptureRequest.JPEG_ORIENTATION, ORIENTATIONS.get(orientation));
         } catch (java.lang.Exception e) {
             e.printStackTrace();
@@ -398,6 +616,220 @@ class QrCameraC2 implements QrCamera {
         }
     }
 
+    @Override
+    public void setLowLightController(LowLightController controller) {
+        lowLight = controller;
+    }
+
+    /**
+     * Whether the back camera has a flash unit, looked up from the camera
+     * manager if the camera hasn't been opened yet.
+     */
+    private boolean hasTorch() {
+        CameraCharacteristics known = characteristics;
+        if (known == null) {
+            try {
+                CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+                String cameraId = manager == null ? null : backCameraId(manager);
+                if (cameraId == null) return false;
+                known = manager.getCameraCharacteristics(cameraId);
+            } catch (CameraAccessException e) {
+                Log.w(TAG, "Could not read whether the camera has a torch", e);
+                return false;
+            }
+        }
+        Boolean available = known.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+        return available != null && available;
+    }
+
+    @Override
+    public boolean setTorch(boolean on) {
+        if (!hasTorch()) {
+            torchOn = false;
+            return false;
+        }
+        torchOn = on;
+        if (previewBuilder == null || previewSession == null) return true;
+        previewBuilder.set(CaptureRequest.FLASH_MODE, on ? CaptureRequest.FLASH_MODE_TORCH : CaptureRequest.FLASH_MODE_OFF);
+        remeter();
+        updateRepeatingRequest();
+        return true;
+    }
+
+    @Override
+    public void setExposureBias(int stops) {
+        exposureBias = stops;
+        if (previewBuilder == null || previewSession == null) return;
+        previewBuilder.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, compensationFor(stops));
+        remeter();
+        updateRepeatingRequest();
+    }
+
+    /**
+     * Hands a capped exposure back to auto exposure, so that it is metered and
+     * capped again for the new light. Without this, the exposure samples the
+     * low light controller reads would stay fixed at what was metered before.
+     */
+    private void remeter() {
+        if (!exposureCapped) return;
+        previewBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON);
+        exposureCapped = false;
+    }
+
+    private int compensationFor(int stops) {
+        Range<Integer> range = characteristics.get(CameraCharacteristics.CONTROL_AE_COMPENSATION_RANGE);
+        Rational step = characteristics.get(CameraCharacteristics.CONTROL_AE_COMPENSATION_STEP);
+        if (range == null || step == null || step.floatValue() <= 0) return baseCompensation;
+        return range.clamp(baseCompensation + Math.round(stops / step.floatValue()));
+    }
+
+    private void updateRepeatingRequest() {
+        try {
+            previewSession.setRepeatingRequest(previewBuilder.build(), mCaptureCallback, mBackgroundHandler);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void useZeroCopy() {
+        zeroCopy = true;
+    }
+
+    @Override
+    public void useSensorCrop(RectF window) {
+        cropWindow = window;
+    }
+
+    /**
+     * Maps the window onto the active pixel array, growing it about its centre
+     * if needed so that it isn't smaller than the camera's maximum digital zoom
+     * allows, and so that it has the same shape as the frames read out.
+     * Otherwise the camera would crop each frame further, about the centre,
+     * and frames would no longer show exactly the region returned.
+     */
+    private Rect sensorCropRegion(RectF window, int outputWidth, int outputHeight) {
+        Float maxZoom = characteristics.get(CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM);
+        float minimum = maxZoom == null || maxZoom < 1 ? 1 : 1 / maxZoom;
+        float width = Math.min(1, Math.max(window.width(), minimum));
+        float height = Math.min(1, Math.max(window.height(), minimum));
+
+        int arrayWidth = activeArraySize.width(), arrayHeight = activeArraySize.height();
+        // the width the window needs, as a fraction of the array, for its height to match the output's shape
+        float matchingWidth = height * arrayHeight * outputWidth / ((float) outputHeight * arrayWidth);
+        if (matchingWidth > width) {
+            // an output wider than the whole array loses height instead, as the camera would crop it
+            width = Math.min(1, matchingWidth);
+            height = width * arrayWidth * outputHeight / ((float) outputWidth * arrayHeight);
+        } else {
+            height = Math.min(1, width * arrayWidth * outputHeight / ((float) outputWidth * arrayHeight));
+            width = height * arrayHeight * outputWidth / ((float) outputHeight * arrayWidth);
+        }
+        float left = Math.min(Math.max(0, window.centerX() - width / 2), 1 - width);
+        float top = Math.min(Math.max(0, window.centerY() - height / 2), 1 - height);
+
+        return new Rect(
+            activeArraySize.left + Math.round(left * arrayWidth),
+            activeArraySize.top + Math.round(top * arrayHeight),
+            activeArraySize.left + Math.round((left + width) * arrayWidth),
+            activeArraySize.top + Math.round((top + height) * arrayHeight));
+    }
+
+    @Override
+    public void useMotionMode() {
+        motionMode = true;
+    }
+
+    /**
+     * Asks for the fastest frame rate range the camera offers. With manual sensor
+     * control, exposure is capped once auto exposure has metered the scene (see
+     * capExposure); without it, the action scene or a stop of negative exposure
+     * compensation steers auto exposure towards shorter exposures.
+     */
+    private void applyMotionMode() {
+        Range<Integer>[] fpsRanges = characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        motionFpsRange = null;
+        if (fpsRanges != null) {
+            for (Range<Integer> range : fpsRanges) {
+                if (motionFpsRange == null || range.getUpper() > motionFpsRange.getUpper()
+                    || (range.getUpper().equals(motionFpsRange.getUpper()) && range.getLower() > motionFpsRange.getLower())) {
+                    motionFpsRange = range;
+                }
+            }
+        }
+        if (motionFpsRange != null) {
+            previewBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, motionFpsRange);
+        }
+
+        exposureCapped = false;
+        exposureTimeRange = null;
+        sensitivityRange = null;
+        int[] capabilities = characteristics.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+        if (capabilities != null) {
+            for (int capability : capabilities) {
+                if (capability == CameraMetadata.REQUEST_AVAILABLE_CAPABILITIES_MANUAL_SENSOR) {
+                    exposureTimeRange = characteristics.get(CameraCharacteristics.SENSOR_INFO_EXPOSURE_TIME_RANGE);
+                    sensitivityRange = characteristics.get(CameraCharacteristics.SENSOR_INFO_SENSITIVITY_RANGE);
+                }
+            }
+        }
+        if (exposureTimeRange != null && sensitivityRange != null) {
+            return;
+        }
+
+        int[] sceneModes = characteristics.get(CameraCharacteristics.CONTROL_AVAILABLE_SCENE_MODES);
+        if (sceneModes != null) {
+            for (int sceneMode : sceneModes) {
+                if (sceneMode == CameraMetadata.CONTROL_SCENE_MODE_ACTION) {
+                    previewBuilder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_USE_SCENE_MODE);
+                    previewBuilder.set(CaptureRequest.CONTROL_SCENE_MODE, CameraMetadata.CONTROL_SCENE_MODE_ACTION);
+                    return;
+                }
+            }
+        }
+        Range<Integer> compensationRange = characteristics.get(CameraCharacteristics.CONTROL_AE_COMPENSATION_RANGE);
+        Rational compensationStep = characteristics.get(CameraCharacteristics.CONTROL_AE_COMPENSATION_STEP);
+        if (compensationRange != null && compensationStep != null && compensationStep.floatValue() > 0) {
+            baseCompensation = compensationRange.clamp(Math.round(-1 / compensationStep.floatValue()));
+            previewBuilder.set(CaptureRequest.CONTROL_AE_EXPOSURE_COMPENSATION, baseCompensation);
+        }
+    }
+
+    /**
+     * In motion mode with manual sensor control, waits for auto exposure to
+     * converge and, if it chose an exposure longer than MOTION_MAX_EXPOSURE_NS,
+     * switches to that cap with the sensitivity raised to keep the same brightness.
+     */
+    private void capExposure(CaptureResult result) {
+        if (!motionMode || exposureCapped || exposureTimeRange == null || previewBuilder == null
+            || previewSession == null) return;
+        Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+        Long exposure = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+        Integer sensitivity = result.get(CaptureResult.SENSOR_SENSITIVITY);
+        if (aeState == null || aeState != CaptureResult.CONTROL_AE_STATE_CONVERGED
+            || exposure == null || sensitivity == null) {
+            return;
+        }
+
+        exposureCapped = true;
+        if (exposure <= MOTION_MAX_EXPOSURE_NS) return;
+
+        long capped = exposureTimeRange.clamp(MOTION_MAX_EXPOSURE_NS);
+        int raised = sensitivityRange.clamp((int) (sensitivity * exposure / capped));
+        previewBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_OFF);
+        previewBuilder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, capped);
+        previewBuilder.set(CaptureRequest.SENSOR_SENSITIVITY, raised);
+        if (motionFpsRange != null) {
+            previewBuilder.set(CaptureRequest.SENSOR_FRAME_DURATION, 1000000000L / motionFpsRange.getUpper());
+        }
+        Log.d(TAG, "Capping exposure at " + capped + "ns, ISO " + raised);
+        try {
+            previewSession.setRepeatingRequest(previewBuilder.build(), mCaptureCallback, mBackgroundHandler);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+    }
+
     private void startPreview() {
         if (cameraDevice == null) return;
         if (previewSession == null) return;
@@ -411,6 +843,8 @@ class QrCameraC2 implements QrCamera {
     @Override
     public void stop() {
         stopBackgroundThread();
+        mainHandler.removeCallbacksAndMessages(null);
+        settleTracker.reset();
         if (cameraDevice != null) {
             cameraDevice.close();
         }
@@ -422,7 +856,8 @@ class QrCameraC2 implements QrCamera {
             previewSession = null;
         }
         if (reader != null) {
-            reader.close();
+            closeReader();
+            reader = null;
         }
     }
 
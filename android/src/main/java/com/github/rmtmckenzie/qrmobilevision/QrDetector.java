@@ -4,103 +4,866 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.ImageFormat;
-import android.os.AsyncTask;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 import android.util.SparseArray;
 
 import com.google.android.gms.vision.Detector;
 import com.google.android.gms.vision.Frame;
 import com.google.android.gms.vision.barcode.Barcode;
-import com.google.android.gms.vision.barcode.BarcodeDetector;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Allows QrCamera classes to send frames to a Detector
+ * Allows QrCamera classes to send frames to a Detector.
+ * <p>
+ * Frames are decoded on a set of worker threads, each with its own detector.
+ * The number of workers in use follows how long decodes take compared to how
+ * often frames arrive, and results are passed on in frame order.
+ * <p>
+ * Frames can also be handed over as the camera's own buffer, which is then
+ * decoded in place and given back once every session is done with it.
  */
 
-class QrDetector {
-    private AtomicInteger atomicCounter = new AtomicInteger();
+class QrDetector implements ResourceGovernor.Target {
+    private static final String TAG = "c.g.r.QrDetector";
+    private static final float SMOOTHING = 0.1f;
+
+    private final AtomicLong sequence = new AtomicLong();
     private final QrReaderCallbacks communicator;
-    private final Detector<Barcode> detector;
+    private final Context context;
+    private final int formats;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ResultSequencer<FrameResult> sequencer;
+    private final List<Worker> workers = new ArrayList<>();
+    private int maxWorkers = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    private int activeWorkers = 1;
+    // limits set by the ResourceGovernor; 0 for none
+    private int workerLimit;
+    private volatile float frameRateLimit;
+    private volatile int resolutionLimit = 1;
+    private long lastDecodedNanos;
+    private int nextWorker = 0;
+    private long lastFrameNanos;
+    private volatile float frameIntervalMs;
+    private float decodeMs;
     private int width = 0, height = 0;
     boolean isNV21 = false;
+    private FocusScheduler focusScheduler;
+    private BarcodeTracker tracker;
+    private int pyramidFactor = 1;
+    private FrameOrientation orientation = FrameOrientation.NONE;
+    private RectF regionOfInterest;
+    private FrameRecorder recorder;
+    private SharpnessFilter sharpnessFilter;
+    private ContentFilter contentFilter;
+    private ScanJournal journal;
+    // when set, frames only go to the probe and nothing is decoded
+    private final CameraBackendBenchmark.Probe benchmarkProbe;
+    private int scanTarget;
+    // distinct values read towards the scan target; only touched on the main thread
+    private final Set<String> scanned = new LinkedHashSet<>();
+    private volatile boolean targetReached;
+    // bumped by restartScan, so that frames submitted before it count towards no scan
+    private volatile int scanGeneration;
+    // once set, nothing more is decoded or passed on
+    private volatile boolean released;
+    // other sessions fed the same frames as this one
+    private final List<QrDetector> attached = new CopyOnWriteArrayList<>();
 
     QrDetector(QrReaderCallbacks communicator, Context context, int formats) {
+        this(communicator, context, formats, DetectorProvider.obtain(context, formats), null);
+    }
+
+    private QrDetector(QrReaderCallbacks communicator, Context context, int formats, Detector<Barcode> detector,
+                       CameraBackendBenchmark.Probe benchmarkProbe) {
         System.out.println("Making detector for formats: " + formats);
         this.communicator = communicator;
-        this.detector = new BarcodeDetector.Builder(context.getApplicationContext()).setBarcodeFormats(formats).build();
+        this.context = context;
+        this.formats = formats;
+        this.benchmarkProbe = benchmarkProbe;
+        this.workers.add(new Worker(detector));
+        this.sequencer = new ResultSequencer<>(new ResultSequencer.Emitter<FrameResult>() {
+            @Override
+            public void emit(FrameResult result) {
+                deliver(result);
+            }
+        });
     }
 
     void useNV21(int width, int height) {
         isNV21 = true;
         this.width = width;
         this.height = height;
+        for (QrDetector session : attached) {
+            session.useNV21(width, height);
+        }
+    }
+
+    void useOrientation(FrameOrientation orientation) {
+        this.orientation = orientation;
+        for (QrDetector session : attached) {
+            session.useOrientation(orientation);
+        }
+    }
+
+    /**
+     * Only decode the given part of each frame, normalized to [0, 1] in sensor orientation.
+     */
+    void useRegionOfInterest(RectF region) {
+        this.regionOfInterest = region;
+    }
+
+    /**
+     * Feeds another session the same frames as this one, so that it shares the
+     * camera and the frame copy, but has its own formats, region and results.
+     */
+    void attach(QrDetector session) {
+        session.isNV21 = isNV21;
+        session.width = width;
+        session.height = height;
+        session.orientation = orientation;
+        session.limitFrameRate(frameRateLimit);
+        session.limitResolution(resolutionLimit);
+        session.limitWorkers(workerLimit);
+        attached.add(session);
+    }
+
+    void detach(QrDetector session) {
+        attached.remove(session);
+    }
+
+    /**
+     * Writes every frame this detector is given to the recorder, for replaying later.
+     */
+    void useRecorder(FrameRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Skip NV21 frames that are too blurry to decode, before any other work on them.
+     */
+    void useSharpnessFilter() {
+        sharpnessFilter = new SharpnessFilter();
+    }
+
+    /**
+     * Only pass on values the filter accepts. Anything else is treated as never
+     * read, except that it still counts as a detection for focusing.
+     */
+    void useContentFilter(ContentFilter filter) {
+        contentFilter = filter;
+    }
+
+    /**
+     * Stop decoding as soon as the given number of distinct values have been
+     * read, and pass them on together through scanCompleted rather than one by one.
+     */
+    void useScanTarget(int count) {
+        scanTarget = count;
+    }
+
+    /**
+     * Starts collecting values towards the scan target afresh. Called on the main thread.
+     */
+    void restartScan() {
+        scanned.clear();
+        ++scanGeneration;
+        targetReached = false;
+    }
+
+    /**
+     * Appends every value passed on to the journal as well.
+     */
+    void useJournal(ScanJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Waits until every value journaled so far is on disk.
+     */
+    void commitJournal() {
+        ScanJournal journal = this.journal;
+        if (journal != null) {
+            journal.commit();
+        }
+    }
+
+    void setFocusScheduler(FocusScheduler focusScheduler) {
+        this.focusScheduler = focusScheduler;
+    }
+
+    void useTracking() {
+        tracker = new BarcodeTracker();
+    }
+
+    /**
+     * Decode each frame as a grid of overlapping tiles in parallel. The tiles
+     * already use all the cores, so only one frame is decoded at a time.
+     *
+     * @param overlap - fraction of a tile's size by which neighbouring tiles overlap
+     */
+    void useTiles(int rows, int columns, float overlap) {
+        int tileWorkers = Math.min(rows * columns, Runtime.getRuntime().availableProcessors());
+        Worker worker = workers.get(0);
+        worker.detector.release();
+        worker.detector = new TiledBarcodeDetector(new DetectorPool(context, formats, tileWorkers), rows, columns, overlap);
+        maxWorkers = 1;
+    }
+
+    /**
+     * Try each frame shrunk by the given factor first, and only decode at full
+     * resolution when nothing is found.
+     */
+    void usePyramid(int factor) {
+        pyramidFactor = factor;
     }
 
     void useJPEG() {
         isNV21 = false;
         this.width = 0;
         this.height = 0;
+        for (QrDetector session : attached) {
+            session.useJPEG();
+        }
+    }
+
+    /**
+     * A detector that only hands frames to the probe, decoding nothing, while a
+     * camera backend is benchmarked. No barcode detector is built for it.
+     */
+    static QrDetector forBenchmark(Context context, int formats, CameraBackendBenchmark.Probe probe) {
+        return new QrDetector(null, context, formats, null, probe);
+    }
+
+    /**
+     * How many frames can be held by decoding at once, counting the sessions
+     * attached so far, so that a camera handing over its own buffers knows how
+     * many it needs.
+     */
+    synchronized int maxFramesInFlight() {
+        int frames = maxWorkers;
+        for (QrDetector session : attached) {
+            frames += session.maxFramesInFlight();
+        }
+        return frames;
     }
 
     void detect(byte[] bytes) {
-        new qrTask(bytes, atomicCounter.incrementAndGet(), atomicCounter).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        detect(bytes, System.nanoTime());
     }
 
-    private class ImageFrame {
-        ImageFrame(byte[] bytes, int count) {
-            this.bytes = bytes;
-            this.count = count;
+    /**
+     * @param timestampNanos - when the frame was captured, only used for recording
+     */
+    void detect(byte[] bytes, long timestampNanos) {
+        if (recorder != null) {
+            recorder.record(bytes, timestampNanos, isNV21 ? FrameRecorder.FORMAT_NV21 : FrameRecorder.FORMAT_JPEG,
+                width, height, width, orientation.rotationDegrees);
         }
+        SharedFrame frame = new SharedFrame(ByteBuffer.wrap(bytes), bytes, width, timestampNanos, null);
+        detect(frame);
+        frame.done();
+    }
 
-        final byte[] bytes;
-        //final ByteBuffer bytes;
-        final int count;
+    /**
+     * Decodes the luma plane of a YUV frame in the camera's own buffer, without
+     * copying it. The buffer must stay valid until release runs, which is once
+     * every session is done with it, or before this returns if none took it.
+     *
+     * @param stride - bytes from the start of one row to the next
+     */
+    void detect(ByteBuffer luma, int stride, long timestampNanos, Runnable release) {
+        SharedFrame frame = new SharedFrame(luma, null, stride, timestampNanos, release);
+        try {
+            if (recorder != null) {
+                // recordings are written later, after the camera has the buffer back
+                byte[] copy = new byte[stride * height * 3 / 2];
+                ByteBuffer source = luma.duplicate();
+                source.get(copy, 0, Math.min(source.remaining(), stride * height));
+                Arrays.fill(copy, stride * height, copy.length, (byte) 128);
+                recorder.record(copy, timestampNanos, FrameRecorder.FORMAT_NV21, width, height, stride,
+                    orientation.rotationDegrees);
+            }
+            detect(frame);
+        } finally {
+            // workers that took the frame hold their own reference, so this only
+            // releases it if none did
+            frame.done();
+        }
     }
 
-    private class qrTask extends AsyncTask<Void, Void, SparseArray<Barcode>> {
+    private void detect(SharedFrame frame) {
+        if (benchmarkProbe != null) {
+            benchmarkProbe.frame(frame.data);
+            return;
+        }
+        // frames are only ever read, so every session can share the same buffer
+        for (QrDetector session : attached) {
+            session.detect(frame);
+        }
+        if (released || targetReached) return;
 
-        public qrTask(byte[] bytes, int count, AtomicInteger counter) {
-            this.bytes = bytes;
-            this.count = count;
-            this.counter = counter;
+        long now = System.nanoTime();
+        if (lastFrameNanos != 0) {
+            frameIntervalMs = smooth(frameIntervalMs, (now - lastFrameNanos) / 1e6f);
+        }
+        lastFrameNanos = now;
+
+        if (frameRateLimit > 0 && now - lastDecodedNanos < 1e9f / frameRateLimit) return;
+
+        float sharpness = 0;
+        if (sharpnessFilter != null && isNV21) {
+            sharpness = sharpness(frame);
+            if (!sharpnessFilter.accept(sharpness)) {
+                skippedBlurry();
+                return;
+            }
+        }
+
+        Worker worker = nextIdleWorker();
+        if (worker == null) {
+            // every worker is busy with a newer frame than this will be by the time one frees up
+            return;
+        }
+
+        lastDecodedNanos = now;
+        long frameSequence = sequence.incrementAndGet();
+        sequencer.submitted(frameSequence);
+        worker.decode(frame, frameSequence, sharpness, scanGeneration);
+    }
+
+    /**
+     * Sharpness of the region of interest, or of the whole frame without one.
+     */
+    private float sharpness(SharedFrame frame) {
+        if (regionOfInterest == null) {
+            return SharpnessFilter.score(frame.data, frame.stride, 0, 0, width, height);
+        }
+        return SharpnessFilter.score(frame.data, frame.stride,
+            Math.round(regionOfInterest.left * width), Math.round(regionOfInterest.top * height),
+            Math.round(regionOfInterest.right * width), Math.round(regionOfInterest.bottom * height));
+    }
+
+    /**
+     * A blurry frame counts as a miss, so that focus is still corrected when
+     * the frames that would have shown it's off are never decoded.
+     */
+    private void skippedBlurry() {
+        if (focusScheduler == null) return;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                focusScheduler.onMissed();
+            }
+        });
+    }
+
+    synchronized void release() {
+        released = true;
+        for (QrDetector session : attached) {
+            session.release();
+        }
+        attached.clear();
+        if (recorder != null) {
+            recorder.close();
+            recorder = null;
+        }
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+        sequencer.close();
+        for (Worker worker : workers) {
+            worker.release();
+        }
+        workers.clear();
+    }
+
+    private synchronized Worker nextIdleWorker() {
+        while (workers.size() < activeWorkers) {
+            workers.add(new Worker(null));
+        }
+        for (int i = 0; i < activeWorkers; ++i) {
+            Worker worker = workers.get((nextWorker + i) % activeWorkers);
+            if (worker.busy.compareAndSet(false, true)) {
+                nextWorker = (nextWorker + i + 1) % activeWorkers;
+                return worker;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Use as many workers as it takes to keep up with the frame rate, based on
+     * the smoothed decode time and frame interval.
+     */
+    private synchronized void tuneWorkers() {
+        if (frameIntervalMs <= 0) return;
+        int needed = (int) Math.ceil(decodeMs / frameIntervalMs);
+        int tuned = Math.max(1, Math.min(allowedWorkers(), needed));
+        if (tuned != activeWorkers) {
+            Log.d(TAG, "Using " + tuned + " detection workers");
+            activeWorkers = tuned;
+            nextWorker = nextWorker % activeWorkers;
+        }
+    }
+
+    private int allowedWorkers() {
+        return workerLimit > 0 ? Math.min(maxWorkers, workerLimit) : maxWorkers;
+    }
+
+    @Override
+    public void limitFrameRate(float maxFps) {
+        frameRateLimit = maxFps;
+        for (QrDetector session : attached) {
+            session.limitFrameRate(maxFps);
+        }
+    }
+
+    @Override
+    public void limitResolution(int factor) {
+        resolutionLimit = Math.max(1, factor);
+        for (QrDetector session : attached) {
+            session.limitResolution(factor);
         }
+    }
+
+    /**
+     * Also releases the workers beyond the limit, along with their detectors
+     * and buffers, rather than just leaving them idle.
+     */
+    @Override
+    public synchronized void limitWorkers(int max) {
+        workerLimit = max;
+        int allowed = allowedWorkers();
+        while (workers.size() > allowed) {
+            // a worker still decoding releases once it's done
+            workers.remove(workers.size() - 1).release();
+        }
+        if (activeWorkers > allowed) {
+            activeWorkers = allowed;
+            nextWorker = nextWorker % activeWorkers;
+        }
+        for (QrDetector session : attached) {
+            session.limitWorkers(max);
+        }
+    }
+
+    /**
+     * Adds the detector's current state to stats, for reporting.
+     */
+    synchronized void putStats(Map<String, Object> stats) {
+        stats.put("workers", activeWorkers);
+        stats.put("decodeMillis", (double) decodeMs);
+        stats.put("frameIntervalMillis", (double) frameIntervalMs);
+    }
+
+    private static float smooth(float average, float sample) {
+        return average == 0 ? sample : average + (sample - average) * SMOOTHING;
+    }
+
+    private class Worker {
+        private final ExecutorService thread = Executors.newSingleThreadExecutor();
+        private final AtomicBoolean busy = new AtomicBoolean();
+        // only touched on this worker's thread after construction
+        private Detector<Barcode> detector;
+        private byte[] coarseBuffer;
+        private byte[] cropBuffer;
 
+        Worker(Detector<Barcode> detector) {
+            this.detector = detector;
+        }
+
+        void decode(final SharedFrame frame, final long frameSequence, final float sharpness,
+                    final int generation) {
+            frame.retain();
+            try {
+                thread.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (detector == null) {
+                            detector = DetectorProvider.obtain(context, formats);
+                        }
+                        long start = System.nanoTime();
+                        FrameResult result = null;
+                        try {
+                            result = decodeFrame(Worker.this, frame);
+                        } catch (RuntimeException e) {
+                            Log.w(TAG, "Error decoding frame", e);
+                        } finally {
+                            frame.done();
+                        }
+                        if (result != null) {
+                            result.sharpness = sharpness;
+                            result.timestampNanos = frame.timestampNanos;
+                            result.scanGeneration = generation;
+                        }
+                        final float elapsedMs = (System.nanoTime() - start) / 1e6f;
+                        busy.set(false);
+
+                        final FrameResult finalResult = result;
+                        mainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                decodeMs = smooth(decodeMs, elapsedMs);
+                                tuneWorkers();
+                                sequencer.completed(frameSequence, finalResult);
+                            }
+                        });
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                frame.done();
+                busy.set(false);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        sequencer.completed(frameSequence, null);
+                    }
+                });
+            }
+        }
+
+        void release() {
+            thread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (detector != null) {
+                        detector.release();
+                        detector = null;
+                    }
+                }
+            });
+            thread.shutdown();
+        }
+    }
+
+    /**
+     * A frame shared by every worker and session decoding it. The release
+     * action, if any, runs when the last of them is done.
+     */
+    private static class SharedFrame {
+        final ByteBuffer data;
+        // backing array of data, or null for the camera's own buffers
         final byte[] bytes;
-        final int count;
-        final AtomicInteger counter;
+        final int stride;
+        final long timestampNanos;
+        private final Runnable release;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        SharedFrame(ByteBuffer data, byte[] bytes, int stride, long timestampNanos, Runnable release) {
+            this.data = data;
+            this.bytes = bytes;
+            this.stride = stride;
+            this.timestampNanos = timestampNanos;
+            this.release = release;
+        }
+
+        void retain() {
+            references.incrementAndGet();
+        }
+
+        void done() {
+            if (references.decrementAndGet() == 0 && release != null) {
+                release.run();
+            }
+        }
+    }
+
+    private static class FrameResult {
+        SparseArray<Barcode> detected;
+        int frameWidth, frameHeight;
+        Rect region;
+        Rect firstBox;
+        float sharpness;
+        long timestampNanos;
+        int scanGeneration;
+    }
+
+    private FrameResult decodeFrame(Worker worker, SharedFrame shared) {
+        FrameResult result = new FrameResult();
+        byte[] bytes = shared.bytes;
+        if (isNV21) {
+            result.frameWidth = width;
+            result.frameHeight = height;
+        } else {
+            BitmapFactory.Options bounds = new BitmapFactory.Options();
+            bounds.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(bytes, 0, bytes.length, bounds);
+            if (bounds.outWidth <= 0 || bounds.outHeight <= 0) return null;
+            result.frameWidth = bounds.outWidth;
+            result.frameHeight = bounds.outHeight;
+        }
+
+        Rect region = tracker == null ? null : tracker.searchRegion(result.frameWidth, result.frameHeight);
+        if (region == null && regionOfInterest != null) {
+            region = new Rect(
+                Math.round(regionOfInterest.left * result.frameWidth) & ~1,
+                Math.round(regionOfInterest.top * result.frameHeight) & ~1,
+                Math.round(regionOfInterest.right * result.frameWidth) & ~1,
+                Math.round(regionOfInterest.bottom * result.frameHeight) & ~1);
+        }
+        result.region = region;
+
+        int resolutionLimit = this.resolutionLimit;
+        if (region == null && resolutionLimit > 1) {
+            // only the shrunk frame, with no full resolution retry, while resources are short
+            SparseArray<Barcode> coarse = detectCoarse(worker, shared, result.frameWidth, result.frameHeight,
+                Math.max(pyramidFactor, resolutionLimit));
+            if (coarse == null) return null;
+            result.detected = coarse;
+            if (coarse.size() > 0) {
+                result.firstBox = coarse.valueAt(0).getBoundingBox();
+            }
+            return result;
+        }
+        if (region == null && pyramidFactor > 1) {
+            SparseArray<Barcode> coarse = detectCoarse(worker, shared, result.frameWidth, result.frameHeight,
+                pyramidFactor);
+            if (coarse != null && coarse.size() > 0) {
+                result.detected = coarse;
+                result.firstBox = coarse.valueAt(0).getBoundingBox();
+                return result;
+            }
+        }
+
+        int rotation = orientation.frameRotation();
+        int decodedWidth = region == null ? result.frameWidth : region.width();
+        int decodedHeight = region == null ? result.frameHeight : region.height();
+        Frame.Builder frameBuilder = new Frame.Builder().setRotation(rotation);
+        if (isNV21) {
+            if (region == null) {
+                // rows are decoded with their padding, and a last row cut short by the camera is left out
+                decodedWidth = shared.stride;
+                decodedHeight = Math.min(height, shared.data.capacity() / shared.stride);
+                frameBuilder.setImageData(shared.data.duplicate(), decodedWidth, decodedHeight, ImageFormat.NV21);
+            } else {
+                worker.cropBuffer = cropNV21(shared.data, shared.stride, height, region, worker.cropBuffer);
+                frameBuilder.setImageData(ByteBuffer.wrap(worker.cropBuffer), region.width(), region.height(),
+                    ImageFormat.NV21);
+            }
+        } else {
+            Bitmap bmp = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+            if (bmp == null) return null;
+            if (region != null) {
+                bmp = Bitmap.createBitmap(bmp, region.left, region.top, region.width(), region.height());
+            }
+            frameBuilder.setBitmap(bmp);
+        }
+
+        Frame frame = frameBuilder.build();
+
+        SparseArray<Barcode> detected = worker.detector.detect(frame);
+        FrameOrientation.toSensor(detected, rotation, decodedWidth, decodedHeight);
+        if (detected.size() > 0) {
+            result.firstBox = detected.valueAt(0).getBoundingBox();
+            if (region != null) result.firstBox.offset(region.left, region.top);
+        }
+        result.detected = detected;
+        return result;
+    }
 
-        @Override
-        protected SparseArray<Barcode> doInBackground(Void... voids) {
-            if (count < atomicCounter.get()) {
-                System.out.println("Dropping frame");
-                return null;
+    /**
+     * Decodes a copy of the frame shrunk by the given factor, with corner points
+     * scaled back up to full-frame coordinates. NV21 frames have their luma
+     * decimated into the worker's reused buffer; JPEGs are decoded subsampled.
+     */
+    private SparseArray<Barcode> detectCoarse(Worker worker, SharedFrame shared, int frameWidth, int frameHeight,
+                                              int factor) {
+        Frame frame;
+        int coarseWidth, coarseHeight;
+        int rotation = orientation.frameRotation();
+        if (isNV21) {
+            coarseWidth = (frameWidth / factor) & ~1;
+            coarseHeight = (frameHeight / factor) & ~1;
+            int size = coarseWidth * coarseHeight * 3 / 2;
+            if (worker.coarseBuffer == null || worker.coarseBuffer.length != size) {
+                worker.coarseBuffer = new byte[size];
+                Arrays.fill(worker.coarseBuffer, coarseWidth * coarseHeight, size, (byte) 128);
             }
+            decimateLuma(shared.data, shared.stride, factor, worker.coarseBuffer, coarseWidth, coarseHeight);
+            frame = new Frame.Builder()
+                .setImageData(ByteBuffer.wrap(worker.coarseBuffer), coarseWidth, coarseHeight, ImageFormat.NV21)
+                .setRotation(rotation)
+                .build();
+        } else {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = factor;
+            Bitmap bmp = BitmapFactory.decodeByteArray(shared.bytes, 0, shared.bytes.length, options);
+            if (bmp == null) return null;
+            coarseWidth = bmp.getWidth();
+            coarseHeight = bmp.getHeight();
+            frame = new Frame.Builder().setBitmap(bmp).setRotation(rotation).build();
+        }
+
+        SparseArray<Barcode> detected = worker.detector.detect(frame);
+        FrameOrientation.toSensor(detected, rotation, coarseWidth, coarseHeight);
+        float scaleX = frameWidth / (float) coarseWidth, scaleY = frameHeight / (float) coarseHeight;
+        for (int i = 0; i < detected.size(); ++i) {
+            Point[] corners = detected.valueAt(i).cornerPoints;
+            if (corners == null) continue;
+            for (Point point : corners) {
+                point.set(Math.round(point.x * scaleX), Math.round(point.y * scaleY));
+            }
+        }
+        return detected;
+    }
 
-            Frame.Builder frameBuilder = new Frame.Builder();
+    private static void decimateLuma(ByteBuffer src, int srcStride, int factor, byte[] dst, int dstWidth,
+                                     int dstHeight) {
+        int dstPos = 0;
+        for (int y = 0; y < dstHeight; ++y) {
+            int srcPos = y * factor * srcStride;
+            for (int x = 0; x < dstWidth; ++x, srcPos += factor) {
+                dst[dstPos++] = src.get(srcPos);
+            }
+        }
+    }
 
-            Bitmap bmp;
-            if (isNV21) {
-                frameBuilder.setImageData(ByteBuffer.wrap(bytes), width, height, ImageFormat.NV21);
+    /**
+     * Passes on the results of one frame. Called on the main thread, in frame order.
+     */
+    private void deliver(FrameResult result) {
+        if (released) {
+            // decoded after stop
+            return;
+        }
+        SparseArray<Barcode> detectedItems = result.detected;
+        if (sharpnessFilter != null) {
+            sharpnessFilter.decoded(result.sharpness, detectedItems.size() > 0);
+        }
+        if (focusScheduler != null) {
+            if (detectedItems.size() == 0) {
+                focusScheduler.onMissed();
             } else {
-                bmp = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
-                if (bmp == null) return null;
-                frameBuilder.setBitmap(bmp);
+                focusScheduler.onDetected(result.firstBox, result.frameWidth, result.frameHeight);
+            }
+        }
+        if (contentFilter != null) {
+            detectedItems = filtered(detectedItems);
+        }
+        if (scanTarget > 0) {
+            if (tracker != null) {
+                // still followed so that decoding keeps to where the codes are
+                tracker.update(detectedItems, result.region);
+            }
+            if (result.scanGeneration == scanGeneration) {
+                // otherwise decoded for a scan that has since been restarted
+                collect(detectedItems, result.timestampNanos);
+            }
+            return;
+        }
+        if (tracker != null) {
+            for (BarcodeTracker.Track track : tracker.update(detectedItems, result.region)) {
+                journal(track.value, formatOf(detectedItems, track.value), result.timestampNanos);
+                communicator.qrReadTracked(track.value, track.id);
             }
+            return;
+        }
+        for (int i = 0; i < detectedItems.size(); ++i) {
+            System.out.println("Item read!: " + detectedItems.valueAt(i).rawValue);
+            journal(detectedItems.valueAt(i).displayValue, detectedItems.valueAt(i).format, result.timestampNanos);
+            communicator.qrRead(detectedItems.valueAt(i).displayValue);
+        }
+    }
 
-            Frame frame = frameBuilder.build();
+    private void journal(String value, int format, long frameTimestampNanos) {
+        if (journal != null) {
+            journal.append(value, format, frameTimestampNanos);
+        }
+    }
 
-            return detector.detect(frame);
+    private static int formatOf(SparseArray<Barcode> detectedItems, String value) {
+        for (int i = 0; i < detectedItems.size(); ++i) {
+            if (value.equals(detectedItems.valueAt(i).displayValue)) {
+                return detectedItems.valueAt(i).format;
+            }
         }
+        return 0;
+    }
+
+    private SparseArray<Barcode> filtered(SparseArray<Barcode> detectedItems) {
+        SparseArray<Barcode> accepted = new SparseArray<>(detectedItems.size());
+        for (int i = 0; i < detectedItems.size(); ++i) {
+            if (contentFilter.accepts(detectedItems.valueAt(i))) {
+                accepted.append(detectedItems.keyAt(i), detectedItems.valueAt(i));
+            }
+        }
+        return accepted;
+    }
 
-        @Override
-        protected void onPostExecute(SparseArray<Barcode> detectedItems) {
-            if (detectedItems == null) return;
-            for (int i = 0; i < detectedItems.size(); ++i) {
-                System.out.println("Item read!: " + detectedItems.valueAt(i).rawValue);
-                communicator.qrRead(detectedItems.valueAt(i).displayValue);
+    private void collect(SparseArray<Barcode> detectedItems, long frameTimestampNanos) {
+        if (targetReached) return;
+        for (int i = 0; i < detectedItems.size() && scanned.size() < scanTarget; ++i) {
+            Barcode barcode = detectedItems.valueAt(i);
+            if (scanned.add(barcode.displayValue)) {
+                journal(barcode.displayValue, barcode.format, frameTimestampNanos);
+            }
+        }
+        if (scanned.size() < scanTarget) return;
+
+        targetReached = true;
+        // frames still being decoded can't add anything now
+        sequencer.clear();
+        communicator.scanCompleted(new ArrayList<>(scanned));
+    }
+
+    /**
+     * Copies the given region out of an NV21 frame. The region must lie on even coordinates.
+     */
+    static byte[] cropNV21(byte[] data, int width, int height, Rect region) {
+        return cropNV21(ByteBuffer.wrap(data), width, height, region, null);
+    }
+
+    /**
+     * Copies the given region out of an NV21 frame into out, or into a new
+     * array if out is null or the wrong size. A frame that is only a luma
+     * plane gets neutral chroma.
+     *
+     * @param stride - bytes from the start of one row to the next
+     */
+    static byte[] cropNV21(ByteBuffer data, int stride, int height, Rect region, byte[] out) {
+        int cropWidth = region.width(), cropHeight = region.height();
+        int size = cropWidth * cropHeight * 3 / 2;
+        if (out == null || out.length != size) {
+            out = new byte[size];
+        }
+
+        ByteBuffer source = data.duplicate();
+        int outPos = 0;
+        for (int row = region.top; row < region.bottom; ++row) {
+            source.position(row * stride + region.left);
+            source.get(out, outPos, cropWidth);
+            outPos += cropWidth;
+        }
+        int uvStart = stride * height;
+        if (source.limit() >= uvStart + stride * height / 2) {
+            for (int row = region.top / 2; row < region.bottom / 2; ++row) {
+                source.position(uvStart + row * stride + region.left);
+                source.get(out, outPos, cropWidth);
+                outPos += cropWidth;
             }
+        } else {
+            Arrays.fill(out, outPos, size, (byte) 128);
         }
+        return out;
     }
 }
@@ -2,7 +2,15 @@ package com.github.rmtmckenzie.qrmobilevision;
 
 import android.Manifest;
 import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
+import android.graphics.RectF;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.SparseArray;
 import androidx.core.app.ActivityCompat;
 import android.util.Log;
 import io.flutter.plugin.common.MethodCall;
@@ -13,11 +21,15 @@ import io.flutter.plugin.common.PluginRegistry;
 import io.flutter.plugin.common.PluginRegistry.Registrar;
 import io.flutter.view.TextureRegistry;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 
 /**
@@ -27,6 +39,7 @@ public class QrMobileVisionPlugin implements MethodCallHandler, QrReaderCallback
 
     private static final String TAG = "c.g.r.QrMobVisPlugin";
     private static final int REQUEST_PERMISSION = 1;
+    private static final String PREWARM_META_DATA = "com.github.rmtmckenzie.qrmobilevision.PREWARM_FORMATS";
     private final MethodChannel channel;
     private final Activity context;
     private final TextureRegistry textures;
@@ -34,6 +47,9 @@ public class QrMobileVisionPlugin implements MethodCallHandler, QrReaderCallback
     private boolean waitingForPermissionResult;
     private boolean permissionDenied;
     private ReadingInstance readingInstance;
+    private ExternalFrameDetector externalFrameDetector;
+    private int nextSessionId = 1;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
 
     public QrMobileVisionPlugin(MethodChannel channel, Activity context, TextureRegistry textures) {
         this.textures = textures;
@@ -49,6 +65,27 @@ public class QrMobileVisionPlugin implements MethodCallHandler, QrReaderCallback
         QrMobileVisionPlugin qrMobileVisionPlugin = new QrMobileVisionPlugin(channel, registrar.activity(), registrar.textures());
         channel.setMethodCallHandler(qrMobileVisionPlugin);
         registrar.addRequestPermissionsResultListener(qrMobileVisionPlugin);
+        if (registrar.activity() != null) {
+            registrar.activity().getApplication().registerActivityLifecycleCallbacks(qrMobileVisionPlugin.lifecycleCallbacks);
+        }
+        prewarmFromManifest(registrar.context());
+    }
+
+    /**
+     * Prewarms the detector at registration if the app's manifest contains a
+     * meta-data entry listing the formats to expect, i.e. "QR_CODE,EAN_13".
+     */
+    private static void prewarmFromManifest(Context context) {
+        try {
+            ApplicationInfo info = context.getPackageManager()
+                .getApplicationInfo(context.getPackageName(), PackageManager.GET_META_DATA);
+            if (info.metaData == null) return;
+            String formats = info.metaData.getString(PREWARM_META_DATA);
+            if (formats == null) return;
+            DetectorProvider.prewarm(context, BarcodeFormats.intFromStringList(Arrays.asList(formats.split("\\s*,\\s*"))));
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "Could not read application meta-data for prewarm", e);
+        }
     }
 
     @Override
@@ -69,7 +106,49 @@ public class QrMobileVisionPlugin implements MethodCallHandler, QrReaderCallback
         return false;
     }
 
+    /**
+     * Pauses the reader while the activity is in the background and resumes it when it
+     * comes back, without waiting for the Dart side to stop and restart it.
+     */
+    private final Application.ActivityLifecycleCallbacks lifecycleCallbacks = new Application.ActivityLifecycleCallbacks() {
+        @Override
+        public void onActivityResumed(Activity activity) {
+            if (activity == context && readingInstance != null) {
+                readingInstance.reader.resume();
+            }
+        }
+
+        @Override
+        public void onActivityPaused(Activity activity) {
+            if (activity == context && readingInstance != null && !waitingForPermissionResult) {
+                readingInstance.reader.pause();
+            }
+        }
+
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+        }
+
+        @Override
+        public void onActivityStarted(Activity activity) {
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+        }
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {
+        }
+    };
+
     private void stopReader() {
+        // sessions are released along with the reader's detector
+        readingInstance.sessions.clear();
         readingInstance.reader.stop();
         readingInstance = null;
         lastHeartbeatTimeout = null;
@@ -96,11 +175,28 @@ public class QrMobileVisionPlugin implements MethodCallHandler, QrReaderCallback
                     }
 
                     int barcodeFormats = BarcodeFormats.intFromStringList(formatStrings);
+                    ReaderOptions options;
+                    try {
+                        options = readerOptions(methodCall);
+                    } catch (PatternSyntaxException e) {
+                        result.error("INVALID_ARGUMENT", "Invalid filter pattern", e.getMessage());
+                        break;
+                    }
 
                     TextureRegistry.SurfaceTextureEntry textureEntry = textures.createSurfaceTexture();
-                    QrReader reader = new QrReader(targetWidth, targetHeight, context, barcodeFormats,
+                    QrReader reader = new QrReader(targetWidth, targetHeight, context, barcodeFormats, options,
                         this, this, textureEntry.surfaceTexture());
 
+                    reader.setLowLightListener(new LowLightController.Listener() {
+                        @Override
+                        public void lowLightChanged(boolean lowLight, boolean torchOn) {
+                            Map<String, Object> arguments = new HashMap<>();
+                            arguments.put("lowLight", lowLight);
+                            arguments.put("torch", torchOn);
+                            channel.invokeMethod("lowLight", arguments);
+                        }
+                    });
+
                     readingInstance = new ReadingInstance(reader, textureEntry, result);
                     try {
                         reader.start(
@@ -127,6 +223,112 @@ public class QrMobileVisionPlugin implements MethodCallHandler, QrReaderCallback
                 result.success(null);
                 break;
             }
+            case "addSession": {
+                if (readingInstance == null) {
+                    result.error("NOT_RUNNING", "addSession can only be called while the reader is running", null);
+                    break;
+                }
+                List<String> formatStrings = methodCall.argument("formats");
+                ReaderOptions options;
+                try {
+                    options = readerOptions(methodCall);
+                } catch (PatternSyntaxException e) {
+                    result.error("INVALID_ARGUMENT", "Invalid filter pattern", e.getMessage());
+                    break;
+                }
+                int sessionId = nextSessionId++;
+                QrDetector session = readingInstance.reader.addSession(
+                    BarcodeFormats.intFromStringList(formatStrings), options, new SessionCallbacks(sessionId));
+                readingInstance.sessions.put(sessionId, session);
+
+                Map<String, Object> response = new HashMap<>();
+                response.put("sessionId", sessionId);
+                response.put("surfaceWidth", readingInstance.reader.qrCamera.getWidth());
+                response.put("surfaceHeight", readingInstance.reader.qrCamera.getHeight());
+                response.put("surfaceOrientation", readingInstance.reader.qrCamera.getOrientation());
+                response.put("textureId", readingInstance.textureEntry.id());
+                result.success(response);
+                break;
+            }
+            case "removeSession": {
+                Integer sessionId = methodCall.argument("sessionId");
+                if (readingInstance != null && sessionId != null) {
+                    QrDetector session = readingInstance.sessions.get(sessionId);
+                    if (session != null) {
+                        readingInstance.sessions.remove(sessionId);
+                        readingInstance.reader.removeSession(session);
+                    }
+                }
+                result.success(null);
+                break;
+            }
+            case "setTorch": {
+                if (readingInstance == null) {
+                    result.error("NOT_RUNNING", "setTorch can only be called while the reader is running", null);
+                    break;
+                }
+                Boolean on = methodCall.argument("on");
+                result.success(readingInstance.reader.setTorch(on));
+                break;
+            }
+            case "restartScan": {
+                if (readingInstance != null) {
+                    readingInstance.reader.restartScan();
+                }
+                result.success(null);
+                break;
+            }
+            case "getStats": {
+                result.success(readingInstance == null ? null : readingInstance.reader.stats());
+                break;
+            }
+            case "readJournal": {
+                String path = methodCall.argument("path");
+                Number since = methodCall.argument("since");
+                if (path == null) {
+                    result.error("INVALID_ARGUMENT", "Missing a required argument", "Expecting path and optionally since");
+                    break;
+                }
+                readJournal(new File(path), since == null ? 0 : since.longValue(), result);
+                break;
+            }
+            case "prewarm": {
+                List<String> formatStrings = methodCall.argument("formats");
+                DetectorProvider.prewarm(context, BarcodeFormats.intFromStringList(formatStrings));
+                result.success(null);
+                break;
+            }
+            case "decodeImages": {
+                List<Object> images = methodCall.argument("images");
+                Integer batchId = methodCall.argument("batchId");
+                List<String> formatStrings = methodCall.argument("formats");
+                if (images == null || batchId == null) {
+                    result.error("INVALID_ARGUMENT", "Missing a required argument", "Expecting images, batchId and optionally formats");
+                    break;
+                }
+                decodeImages(images, batchId, BarcodeFormats.intFromStringList(formatStrings), result);
+                break;
+            }
+            case "detectFrame": {
+                byte[] bytes = methodCall.argument("bytes");
+                String format = methodCall.argument("format");
+                Integer width = methodCall.argument("width");
+                Integer height = methodCall.argument("height");
+                Integer stride = methodCall.argument("stride");
+                Integer rotation = methodCall.argument("rotation");
+                List<String> formatStrings = methodCall.argument("formats");
+                if (bytes == null || format == null || width == null || height == null) {
+                    result.error("INVALID_ARGUMENT", "Missing a required argument", "Expecting bytes, format, width, height and optionally stride, rotation and formats");
+                    break;
+                }
+                if (rotation != null && (rotation < 0 || rotation > 270 || rotation % 90 != 0)) {
+                    result.error("INVALID_ARGUMENT", "Invalid rotation " + rotation, "Expecting 0, 90, 180 or 270");
+                    break;
+                }
+                detectFrame(bytes, format, width, height, stride == null ? width : stride,
+                    rotation == null ? 0 : rotation, BarcodeFormats.intFromStringList(formatStrings), result);
+                break;
+            }
             case "heartbeat": {
                 if (readingInstance != null) {
                     readingInstance.reader.heartBeat();
@@ -139,11 +341,185 @@ public class QrMobileVisionPlugin implements MethodCallHandler, QrReaderCallback
         }
     }
 
+    private static ReaderOptions readerOptions(MethodCall methodCall) {
+        ReaderOptions options = new ReaderOptions();
+        Boolean tracking = methodCall.argument("tracking");
+        options.tracking = tracking != null && tracking;
+        Integer tileRows = methodCall.argument("tileRows");
+        Integer tileColumns = methodCall.argument("tileColumns");
+        Double tileOverlap = methodCall.argument("tileOverlap");
+        if (tileRows != null && tileColumns != null) {
+            options.tileRows = Math.max(1, tileRows);
+            options.tileColumns = Math.max(1, tileColumns);
+        }
+        if (tileOverlap != null) {
+            options.tileOverlap = tileOverlap.floatValue();
+        }
+        Integer pyramidFactor = methodCall.argument("pyramidFactor");
+        if (pyramidFactor != null) {
+            options.pyramidFactor = Math.max(1, pyramidFactor);
+        }
+        options.roi = rectArgument(methodCall, "roi");
+        options.sensorCrop = rectArgument(methodCall, "sensorCrop");
+        options.recordPath = methodCall.argument("recordPath");
+        Boolean motion = methodCall.argument("motion");
+        options.motion = motion != null && motion;
+        Boolean autoTorch = methodCall.argument("autoTorch");
+        options.autoTorch = autoTorch != null && autoTorch;
+        Boolean zeroCopy = methodCall.argument("zeroCopy");
+        options.zeroCopy = zeroCopy != null && zeroCopy;
+        Boolean skipBlurry = methodCall.argument("skipBlurry");
+        options.skipBlurry = skipBlurry != null && skipBlurry;
+        Integer scanTarget = methodCall.argument("scanTarget");
+        options.scanTarget = scanTarget == null ? 0 : Math.max(0, scanTarget);
+        String scanTargetAction = methodCall.argument("scanTargetAction");
+        if (scanTargetAction != null) {
+            options.scanTargetAction = scanTargetAction;
+        }
+        options.filter = contentFilter(methodCall);
+        options.journalPath = methodCall.argument("journalPath");
+        Integer journalMaxFiles = methodCall.argument("journalMaxFiles");
+        options.journalMaxFiles = journalMaxFiles == null ? 0 : Math.max(0, journalMaxFiles);
+        String cameraBackend = methodCall.argument("cameraBackend");
+        if (cameraBackend != null) {
+            options.cameraBackend = cameraBackend;
+        }
+        Boolean benchmarkCameraBackend = methodCall.argument("benchmarkCameraBackend");
+        options.benchmarkCameraBackend = benchmarkCameraBackend != null && benchmarkCameraBackend;
+        return options;
+    }
+
+    /**
+     * @throws PatternSyntaxException if the filter's pattern isn't a valid regular expression
+     */
+    private static ContentFilter contentFilter(MethodCall methodCall) {
+        Map<String, Object> filter = methodCall.argument("filter");
+        if (filter == null) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        List<String> prefixes = (List<String>) filter.get("prefixes");
+        Integer minLength = (Integer) filter.get("minLength");
+        Integer maxLength = (Integer) filter.get("maxLength");
+        String pattern = (String) filter.get("pattern");
+        Boolean gs1Checksum = (Boolean) filter.get("gs1Checksum");
+        Pattern compiled = pattern == null ? null : Pattern.compile(pattern);
+        return new ContentFilter(prefixes, minLength == null ? 0 : minLength, maxLength == null ? 0 : maxLength,
+            (String) filter.get("charset"), compiled, gs1Checksum != null && gs1Checksum);
+    }
+
+    private static RectF rectArgument(MethodCall methodCall, String key) {
+        Map<String, Double> rect = methodCall.argument(key);
+        if (rect == null) {
+            return null;
+        }
+        return new RectF(rect.get("left").floatValue(), rect.get("top").floatValue(),
+            rect.get("right").floatValue(), rect.get("bottom").floatValue());
+    }
+
+    private void decodeImages(List<Object> images, final int batchId, int formats, final Result result) {
+        new BulkDecoder(context, formats).decode(images, new BulkDecoder.Listener() {
+            @Override
+            public void imageDecoded(int index, List<String> values, String error) {
+                Map<String, Object> arguments = new HashMap<>();
+                arguments.put("batchId", batchId);
+                arguments.put("index", index);
+                arguments.put("values", values);
+                arguments.put("error", error);
+                channel.invokeMethod("imageDecoded", arguments);
+            }
+
+            @Override
+            public void allDecoded(int count) {
+                result.success(count);
+            }
+        });
+    }
+
+    /**
+     * Reads the journal on a background thread, after committing what the
+     * running reader, if any, still has buffered.
+     */
+    private void readJournal(final File path, final long sinceMillis, final Result result) {
+        final QrReader reader = readingInstance == null ? null : readingInstance.reader;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (reader != null) {
+                    reader.commitJournal();
+                }
+                final List<Map<String, Object>> entries = new ArrayList<>();
+                String error = null;
+                try {
+                    for (ScanJournal.Entry entry : ScanJournal.read(path, sinceMillis)) {
+                        Map<String, Object> map = new HashMap<>();
+                        map.put("value", entry.value);
+                        map.put("format", BarcodeFormats.nameFromInt(entry.format));
+                        map.put("timeMillis", entry.timeMillis);
+                        map.put("frameTimestamp", entry.frameReference);
+                        entries.add(map);
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not read scan journal " + path, e);
+                    error = e.getMessage();
+                }
+                final String finalError = error;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (finalError == null) {
+                            result.success(entries);
+                        } else {
+                            result.error("JOURNAL_ERROR", finalError, null);
+                        }
+                    }
+                });
+            }
+        }, "ScanJournalReader").start();
+    }
+
+    private void detectFrame(byte[] bytes, String format, int width, int height, int stride, int rotation,
+                             int formats, final Result result) {
+        if (externalFrameDetector == null) {
+            externalFrameDetector = new ExternalFrameDetector(context);
+        }
+        externalFrameDetector.detect(bytes, format, width, height, stride, rotation, formats, new ExternalFrameDetector.Callback() {
+            @Override
+            public void detected(List<Map<String, Object>> barcodes, long latencyMicros) {
+                Map<String, Object> response = new HashMap<>();
+                response.put("barcodes", barcodes);
+                response.put("latencyMicros", latencyMicros);
+                result.success(response);
+            }
+
+            @Override
+            public void failed(String message) {
+                result.error("DETECT_FAILED", message, null);
+            }
+        });
+    }
+
     @Override
     public void qrRead(String data) {
         channel.invokeMethod("qrRead", data);
     }
 
+    @Override
+    public void qrReadTracked(String data, int trackId) {
+        Map<String, Object> arguments = new HashMap<>();
+        arguments.put("data", data);
+        arguments.put("trackId", trackId);
+        channel.invokeMethod("qrReadTracked", arguments);
+    }
+
+    @Override
+    public void scanCompleted(List<String> values) {
+        channel.invokeMethod("scanComplete", values);
+        if (readingInstance != null && readingInstance.reader.scanTargetReached()) {
+            stopReader();
+        }
+    }
+
     @Override
     public void started() {
         Map<String, Object> response = new HashMap<>();
@@ -179,10 +555,59 @@ public class QrMobileVisionPlugin implements MethodCallHandler, QrReaderCallback
         }
     }
 
+    @Override
+    public void resumingFailed(Throwable t) {
+        Log.w(TAG, "Resuming QR Mobile Vision failed", t);
+        channel.invokeMethod("cameraError", t.getMessage());
+    }
+
+    /**
+     * Sends an added session's results tagged with its id.
+     */
+    private class SessionCallbacks implements QrReaderCallbacks {
+        private final int sessionId;
+
+        SessionCallbacks(int sessionId) {
+            this.sessionId = sessionId;
+        }
+
+        @Override
+        public void qrRead(String data) {
+            qrReadTracked(data, -1);
+        }
+
+        @Override
+        public void qrReadTracked(String data, int trackId) {
+            Map<String, Object> arguments = new HashMap<>();
+            arguments.put("sessionId", sessionId);
+            arguments.put("data", data);
+            arguments.put("trackId", trackId);
+            channel.invokeMethod("qrReadSession", arguments);
+        }
+
+        @Override
+        public void scanCompleted(List<String> values) {
+            Map<String, Object> arguments = new HashMap<>();
+            arguments.put("sessionId", sessionId);
+            arguments.put("values", values);
+            channel.invokeMethod("scanCompleteSession", arguments);
+
+            // a session doesn't own the camera, so it's simply done
+            if (readingInstance != null) {
+                QrDetector session = readingInstance.sessions.get(sessionId);
+                if (session != null) {
+                    readingInstance.sessions.remove(sessionId);
+                    readingInstance.reader.removeSession(session);
+                }
+            }
+        }
+    }
+
     private class ReadingInstance {
         final QrReader reader;
         final TextureRegistry.SurfaceTextureEntry textureEntry;
         final Result startResult;
+        final SparseArray<QrDetector> sessions = new SparseArray<>();
 
         private ReadingInstance(QrReader reader, TextureRegistry.SurfaceTextureEntry textureEntry, Result startResult) {
             this.reader = reader;
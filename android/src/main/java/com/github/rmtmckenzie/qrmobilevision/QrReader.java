@@ -11,29 +11,182 @@ import android.util.Log;
 
 import com.google.android.gms.vision.CameraSource;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 class QrReader {
     private static final String TAG = "c.g.r.QrReader";
-    final QrCamera qrCamera;
+    QrCamera qrCamera;
+    private final QrDetector detector;
+    private final CameraBackendBenchmark.CameraFactory cameraFactory;
+    private final int barcodeFormats;
+    private String backend;
+    private boolean benchmarkBackend;
+    private CameraBackendBenchmark benchmark;
+    // set when the activity paused mid-benchmark, so that resume runs it again and then starts
+    private boolean benchmarkDeferred;
+    private LowLightController lowLight;
+    private LowLightController.Listener lowLightListener;
+    private final ResourceGovernor governor;
+    private final boolean autoTorch;
+    private final String scanTargetAction;
+    private boolean suspended;
     private final Activity context;
     private final QRReaderStartedCallback startedCallback;
     private Heartbeat heartbeat;
+    private boolean running;
+    private boolean paused;
+    // set between the activity pausing and resuming
+    private boolean background;
     private CameraSource camera;
 
-    QrReader(int width, int height, Activity context, int barcodeFormats,
-             final QRReaderStartedCallback startedCallback, final QrReaderCallbacks communicator,
-             final SurfaceTexture texture) {
+    QrReader(final int width, final int height, final Activity context, int barcodeFormats,
+             final ReaderOptions options, final QRReaderStartedCallback startedCallback,
+             final QrReaderCallbacks communicator, final SurfaceTexture texture) {
         this.context = context;
         this.startedCallback = startedCallback;
+        this.barcodeFormats = barcodeFormats;
 
-        if (android.os.Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+        detector = createDetector(context, barcodeFormats, options, communicator);
+        governor = new ResourceGovernor(context, detector);
+        if (options.recordPath != null) {
+            try {
+                detector.useRecorder(new FrameRecorder(new File(options.recordPath), new FrameRecorder.Logger() {
+                    @Override
+                    public void warn(String message, Throwable error) {
+                        Log.w(FrameRecorder.TAG, message, error);
+                    }
+                }));
+            } catch (IOException e) {
+                Log.w(TAG, "Could not open frame recording " + options.recordPath, e);
+            }
+        }
+        if (options.journalPath != null) {
+            try {
+                detector.useJournal(new ScanJournal(new File(options.journalPath), ScanJournal.DEFAULT_MAX_BYTES,
+                    options.journalMaxFiles, new ScanJournal.Logger() {
+                        @Override
+                        public void warn(String message, Throwable error) {
+                            Log.w(ScanJournal.TAG, message, error);
+                        }
+                    }));
+            } catch (IOException e) {
+                Log.w(TAG, "Could not open scan journal " + options.journalPath, e);
+            }
+        }
+
+        final int displayRotation = context.getWindowManager().getDefaultDisplay().getRotation();
+        cameraFactory = new CameraBackendBenchmark.CameraFactory() {
+            @Override
+            public QrCamera create(String backend, QrDetector target) {
+                return createCamera(backend, width, height, context, texture, target, displayRotation, options);
+            }
+        };
+        scanTargetAction = options.scanTargetAction;
+        autoTorch = options.autoTorch;
+        backend = CameraBackendSelector.choose(context, options.cameraBackend);
+        benchmarkBackend = options.benchmarkCameraBackend
+            && CameraBackendSelector.canBenchmark(context, options.cameraBackend);
+        useCamera(backend);
+    }
+
+    private static QrCamera createCamera(String backend, int width, int height, Activity context,
+                                         SurfaceTexture texture, QrDetector detector, int displayRotation,
+                                         ReaderOptions options) {
+        QrCamera camera;
+        if (ReaderOptions.CAMERA_BACKEND_CAMERA2.equals(backend)
+            && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
             Log.i(TAG, "Using new camera API.");
-            qrCamera = new QrCameraC2(width, height, context, texture, new QrDetector(communicator, context, barcodeFormats));
+            camera = new QrCameraC2(width, height, context, texture, detector, displayRotation);
         } else {
             Log.i(TAG, "Using old camera API.");
-            qrCamera = new QrCameraC1(width, height, texture, new QrDetector(communicator, context, barcodeFormats));
+            camera = new QrCameraC1(width, height, texture, detector, displayRotation);
+        }
+        if (options.motion) {
+            camera.useMotionMode();
+        }
+        if (options.sensorCrop != null) {
+            camera.useSensorCrop(options.sensorCrop);
+        }
+        if (options.zeroCopy) {
+            camera.useZeroCopy();
+        }
+        return camera;
+    }
+
+    /**
+     * Replaces the camera, before it has been started, with one from the given backend.
+     */
+    private void useCamera(String backend) {
+        qrCamera = cameraFactory.create(backend, detector);
+        lowLight = new LowLightController(qrCamera);
+        lowLight.setAuto(autoTorch);
+        lowLight.setListener(lowLightListener);
+        qrCamera.setLowLightController(lowLight);
+    }
+
+    private static QrDetector createDetector(Activity context, int barcodeFormats, ReaderOptions options,
+                                             QrReaderCallbacks communicator) {
+        QrDetector detector = new QrDetector(communicator, context, barcodeFormats);
+        if (options.tracking) {
+            detector.useTracking();
+        }
+        if (options.pyramidFactor > 1) {
+            detector.usePyramid(options.pyramidFactor);
+        }
+        if (options.tileRows * options.tileColumns > 1) {
+            detector.useTiles(options.tileRows, options.tileColumns, options.tileOverlap);
         }
+        if (options.roi != null) {
+            detector.useRegionOfInterest(options.roi);
+        }
+        if (options.skipBlurry) {
+            detector.useSharpnessFilter();
+        }
+        if (options.filter != null) {
+            detector.useContentFilter(options.filter);
+        }
+        if (options.scanTarget > 0) {
+            detector.useScanTarget(options.scanTarget);
+        }
+        return detector;
+    }
+
+    /**
+     * Adds another session reading the same camera frames with its own formats,
+     * options and callbacks. The camera isn't touched; the session just starts
+     * receiving frames from the next one on.
+     */
+    QrDetector addSession(int barcodeFormats, ReaderOptions options, QrReaderCallbacks communicator) {
+        QrDetector session = createDetector(context, barcodeFormats, options, communicator);
+        detector.attach(session);
+        return session;
+    }
+
+    void removeSession(QrDetector session) {
+        detector.detach(session);
+        session.release();
+    }
+
+    void setLowLightListener(LowLightController.Listener listener) {
+        lowLightListener = listener;
+        lowLight.setListener(listener);
+    }
+
+    /**
+     * Turns the torch on or off, or with null hands it back to automatic
+     * control if that was asked for in the options.
+     *
+     * @return false if the camera has no torch
+     */
+    boolean setTorch(Boolean on) {
+        if (on == null) {
+            lowLight.setAuto(autoTorch);
+            return true;
+        }
+        return lowLight.setTorch(on);
     }
 
     void start(final int heartBeatTimeout) throws IOException, NoPermissionException, Exception {
@@ -62,7 +215,46 @@ class QrReader {
                 });
             }
 
+            if (benchmarkBackend) {
+                benchmarkBackend = false;
+                if (background) {
+                    benchmarkDeferred = true;
+                } else {
+                    benchmarkThenStart();
+                }
+                return;
+            }
+            startCamera();
+        } catch (Throwable t) {
+            startedCallback.startingFailed(t);
+        }
+    }
+
+    /**
+     * Measures both camera backends, switching to the other one if it did
+     * clearly better, and remembers the choice for later starts on this device.
+     */
+    private void benchmarkThenStart() {
+        benchmark = new CameraBackendBenchmark(context, barcodeFormats, cameraFactory, backend);
+        benchmark.run(new CameraBackendBenchmark.Callback() {
+            @Override
+            public void finished(String winner) {
+                benchmark = null;
+                CameraBackendSelector.remember(context, winner);
+                if (!winner.equals(backend)) {
+                    backend = winner;
+                    useCamera(winner);
+                }
+                startCamera();
+            }
+        });
+    }
+
+    private void startCamera() {
+        try {
             qrCamera.start();
+            running = true;
+            governor.start();
             startedCallback.started();
         } catch (Throwable t) {
             startedCallback.startingFailed(t);
@@ -73,6 +265,20 @@ class QrReader {
         if (heartbeat != null) {
             heartbeat.stop();
         }
+        running = false;
+        governor.stop();
+
+        if (benchmark != null || benchmarkDeferred) {
+            // stopped before the camera was ever started
+            if (benchmark != null) {
+                benchmark.cancel();
+                benchmark = null;
+            }
+            benchmarkDeferred = false;
+            detector.release();
+            startedCallback.startingFailed(new IllegalStateException("Stopped while benchmarking camera backends"));
+            return;
+        }
 
         if (camera != null) {
             camera.stop();
@@ -81,9 +287,113 @@ class QrReader {
 
             camera = null;
         }
+        if (paused) {
+            // camera was already released by pause
+            paused = false;
+        } else {
+            qrCamera.stop();
+        }
+        detector.release();
+    }
+
+    /**
+     * Releases the camera while the activity is in the background, keeping the
+     * detector and session configuration so that resume doesn't start cold.
+     */
+    void pause() {
+        background = true;
+        if (benchmark != null) {
+            // measuring in the background would be meaningless, and would end by
+            // starting the camera there; the benchmark starts over on resume
+            benchmark.cancel();
+            benchmark = null;
+            benchmarkDeferred = true;
+            return;
+        }
+        releaseCamera();
+    }
+
+    void resume() {
+        background = false;
+        if (benchmarkDeferred) {
+            benchmarkDeferred = false;
+            benchmarkThenStart();
+            return;
+        }
+        restoreCamera();
+    }
+
+    private void releaseCamera() {
+        if (!running || paused) return;
+        paused = true;
+        if (heartbeat != null) {
+            heartbeat.stop();
+        }
         qrCamera.stop();
     }
 
+    private void restoreCamera() {
+        if (!running || !paused || suspended || background) return;
+        try {
+            qrCamera.start();
+        } catch (java.lang.Exception e) {
+            Log.w(TAG, "Could not resume camera", e);
+            // the camera stays released, as pause left it, so stop only has the detector to release
+            running = false;
+            startedCallback.resumingFailed(e);
+            return;
+        }
+        paused = false;
+        if (heartbeat != null) {
+            heartbeat.start();
+        }
+    }
+
+    /**
+     * Called once the scan target is reached. Suspends the camera if the
+     * options ask for it.
+     *
+     * @return whether the options ask for the reader to be stopped altogether
+     */
+    boolean scanTargetReached() {
+        if (ReaderOptions.SCAN_TARGET_SUSPEND.equals(scanTargetAction)) {
+            // like pause, but it stays released when the activity comes back
+            releaseCamera();
+            suspended = true;
+        }
+        return ReaderOptions.SCAN_TARGET_STOP.equals(scanTargetAction);
+    }
+
+    /**
+     * Starts a new scan towards the target, bringing the camera back if it was
+     * suspended, or leaving that to resume if the activity is in the background.
+     */
+    void restartScan() {
+        detector.restartScan();
+        if (suspended) {
+            suspended = false;
+            restoreCamera();
+        }
+    }
+
+    /**
+     * Waits until every scan journaled so far is on disk. Blocks, so not for the main thread.
+     */
+    void commitJournal() {
+        detector.commitJournal();
+    }
+
+    /**
+     * Current state of the reader: the resource tier it's running at, and
+     * the detector's worker count, decode time and frame interval.
+     */
+    Map<String, Object> stats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("resourceTier", governor.tier());
+        detector.putStats(stats);
+        return stats;
+    }
+
     void heartBeat() {
         if (heartbeat != null) {
             heartbeat.beat();
@@ -105,6 +415,12 @@ class QrReader {
         void started();
 
         void startingFailed(Throwable t);
+
+        /**
+         * The camera couldn't be opened again after a pause. The reader is
+         * stopped and only waits for stop to be called.
+         */
+        void resumingFailed(Throwable t);
     }
 
     public static class Exception extends java.lang.Exception {
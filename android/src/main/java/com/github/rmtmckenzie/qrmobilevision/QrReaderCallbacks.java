@@ -1,5 +1,14 @@
 package com.github.rmtmckenzie.qrmobilevision;
 
+import java.util.List;
+
 public interface QrReaderCallbacks {
     void qrRead(String data);
+
+    void qrReadTracked(String data, int trackId);
+
+    /**
+     * The scan target was reached; these are the distinct values read, in the order they were first read.
+     */
+    void scanCompleted(List<String> values);
 }
@@ -0,0 +1,103 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.graphics.RectF;
+
+/**
+ * Optional settings passed to start, beyond the required target size and formats.
+ */
+class ReaderOptions {
+    /**
+     * Follow codes between frames and only decode around them, with a periodic full-frame decode.
+     */
+    boolean tracking = false;
+
+    /**
+     * Grid of overlapping tiles each frame is split into and decoded in parallel; 1x1 disables tiling.
+     */
+    int tileRows = 1, tileColumns = 1;
+    float tileOverlap = 0.2f;
+
+    /**
+     * Factor frames are first shrunk by before decoding, falling back to full resolution; 1 disables it.
+     */
+    int pyramidFactor = 1;
+
+    /**
+     * Part of the frame to decode, normalized to [0, 1] in sensor orientation; null decodes the whole frame.
+     */
+    RectF roi;
+
+    /**
+     * File to record every camera frame to, for replaying with FrameReplayer; null records nothing.
+     */
+    String recordPath;
+
+    /**
+     * Favour short exposures and high frame rates, for codes moving past the camera.
+     */
+    boolean motion = false;
+
+    /**
+     * Window the camera itself crops frames to, normalized to [0, 1] in sensor orientation; null for the full frame.
+     */
+    RectF sensorCrop;
+
+    /**
+     * Turn the torch on (or raise exposure without one) while the scene is too dark to decode.
+     */
+    boolean autoTorch = false;
+
+    /**
+     * Decode the camera's own frame buffers in place rather than copies of them.
+     */
+    boolean zeroCopy = false;
+
+    /**
+     * Skip frames too blurry to decode, with a threshold learned from the frames that did decode.
+     */
+    boolean skipBlurry = false;
+
+    /**
+     * Distinct values to read before the scan is complete and decoding stops; 0 scans until stopped.
+     */
+    int scanTarget = 0;
+
+    /**
+     * What happens to the camera once the scan target is reached: SCAN_TARGET_KEEP_RUNNING,
+     * SCAN_TARGET_SUSPEND or SCAN_TARGET_STOP.
+     */
+    String scanTargetAction = SCAN_TARGET_KEEP_RUNNING;
+
+    /**
+     * Values that aren't accepted are dropped before they reach Dart; null passes everything.
+     */
+    ContentFilter filter;
+
+    /**
+     * File every value passed on is also appended to, for reading back in bulk; null keeps no journal.
+     */
+    String journalPath;
+
+    /**
+     * How many rotated journal files to keep before the oldest are deleted; 0 keeps them all.
+     */
+    int journalMaxFiles = 0;
+
+    /**
+     * Camera API frames come from: CAMERA_BACKEND_AUTO, CAMERA_BACKEND_CAMERA1 or CAMERA_BACKEND_CAMERA2.
+     */
+    String cameraBackend = CAMERA_BACKEND_AUTO;
+
+    /**
+     * With CAMERA_BACKEND_AUTO, measure both camera APIs on the first start on a device and keep the faster.
+     */
+    boolean benchmarkCameraBackend = false;
+
+    static final String SCAN_TARGET_KEEP_RUNNING = "keepRunning";
+    static final String SCAN_TARGET_SUSPEND = "suspend";
+    static final String SCAN_TARGET_STOP = "stop";
+
+    static final String CAMERA_BACKEND_AUTO = "auto";
+    static final String CAMERA_BACKEND_CAMERA1 = "camera1";
+    static final String CAMERA_BACKEND_CAMERA2 = "camera2";
+}
@@ -0,0 +1,211 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.util.Log;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Steps scanning down through tiers of lower frame rate, resolution and
+ * parallelism when the system is short of memory or the device is getting
+ * hot, and back up once that has passed, so that the OS doesn't kill or
+ * throttle the scanner on long sessions.
+ * <p>
+ * The tier is the higher of the memory tier and the thermal tier. Thermal
+ * status says when it has recovered; memory trims don't, so the memory tier
+ * comes down one step at a time once no trim has arrived for a while.
+ * <p>
+ * The thermal API is from API 29, beyond the SDK the plugin compiles against,
+ * so it is reached by reflection.
+ * <p>
+ * Only meant to be used from the main thread.
+ */
+class ResourceGovernor {
+    private static final String TAG = "c.g.r.ResourceGovernor";
+
+    static final int TIER_NORMAL = 0;
+    static final int TIER_REDUCED = 1;
+    static final int TIER_MINIMAL = 2;
+
+    // per tier: frames decoded per second at most (0 for no limit), factor
+    // frames are shrunk by before decoding, and detection workers at most
+    // (0 for no limit)
+    private static final float[] MAX_FPS = {0, 15, 8};
+    private static final int[] RESOLUTION_FACTOR = {1, 1, 2};
+    private static final int[] MAX_WORKERS = {0, 2, 1};
+
+    private static final long MEMORY_RECOVERY_MS = 60000;
+
+    // Build.VERSION_CODES.Q, and PowerManager.THERMAL_STATUS_MODERATE and THERMAL_STATUS_SEVERE
+    private static final int API_THERMAL = 29;
+    private static final int THERMAL_STATUS_MODERATE = 2;
+    private static final int THERMAL_STATUS_SEVERE = 3;
+    private static final String THERMAL_LISTENER = "android.os.PowerManager$OnThermalStatusChangedListener";
+
+    interface Target {
+        void limitFrameRate(float maxFps);
+
+        void limitResolution(int factor);
+
+        void limitWorkers(int maxWorkers);
+    }
+
+    private final Context context;
+    private final Target target;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private int memoryTier = TIER_NORMAL;
+    private int thermalTier = TIER_NORMAL;
+    private int tier = TIER_NORMAL;
+    private Object thermalListener;
+    private boolean running;
+
+    private final ComponentCallbacks2 memoryCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW
+                && level < ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+                memoryPressure(TIER_MINIMAL);
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE
+                && level < ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+                memoryPressure(TIER_REDUCED);
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+                // the app is in the background and next in line to be killed
+                memoryPressure(TIER_MINIMAL);
+            }
+        }
+
+        @Override
+        public void onLowMemory() {
+            memoryPressure(TIER_MINIMAL);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+    };
+
+    private final Runnable memoryRecovery = new Runnable() {
+        @Override
+        public void run() {
+            if (memoryTier == TIER_NORMAL) return;
+            --memoryTier;
+            update();
+            if (memoryTier != TIER_NORMAL) {
+                mainHandler.postDelayed(this, MEMORY_RECOVERY_MS);
+            }
+        }
+    };
+
+    ResourceGovernor(Context context, Target target) {
+        this.context = context.getApplicationContext();
+        this.target = target;
+    }
+
+    void start() {
+        if (running) return;
+        running = true;
+        context.registerComponentCallbacks(memoryCallbacks);
+        if (Build.VERSION.SDK_INT >= API_THERMAL) {
+            startThermal();
+        }
+    }
+
+    void stop() {
+        if (!running) return;
+        running = false;
+        context.unregisterComponentCallbacks(memoryCallbacks);
+        mainHandler.removeCallbacks(memoryRecovery);
+        if (Build.VERSION.SDK_INT >= API_THERMAL) {
+            stopThermal();
+        }
+    }
+
+    int tier() {
+        return tier;
+    }
+
+    private void memoryPressure(int pressureTier) {
+        if (pressureTier > memoryTier) {
+            memoryTier = pressureTier;
+            update();
+        }
+        // recovery starts over from the latest trim
+        mainHandler.removeCallbacks(memoryRecovery);
+        mainHandler.postDelayed(memoryRecovery, MEMORY_RECOVERY_MS);
+    }
+
+    private void startThermal() {
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        if (powerManager == null) return;
+        try {
+            Class<?> listenerClass = Class.forName(THERMAL_LISTENER);
+            Object listener = Proxy.newProxyInstance(listenerClass.getClassLoader(), new Class<?>[]{listenerClass},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        switch (method.getName()) {
+                            case "onThermalStatusChanged":
+                                thermalStatus((Integer) args[0]);
+                                return null;
+                            case "equals":
+                                return proxy == args[0];
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            default:
+                                return "ResourceGovernor thermal listener";
+                        }
+                    }
+                });
+            PowerManager.class.getMethod("addThermalStatusListener", listenerClass).invoke(powerManager, listener);
+            thermalListener = listener;
+            thermalStatus((Integer) PowerManager.class.getMethod("getCurrentThermalStatus").invoke(powerManager));
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException
+            | InvocationTargetException e) {
+            Log.w(TAG, "Could not listen for thermal status", e);
+        }
+    }
+
+    private void stopThermal() {
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        if (powerManager == null || thermalListener == null) return;
+        try {
+            Class<?> listenerClass = Class.forName(THERMAL_LISTENER);
+            PowerManager.class.getMethod("removeThermalStatusListener", listenerClass)
+                .invoke(powerManager, thermalListener);
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException
+            | InvocationTargetException e) {
+            Log.w(TAG, "Could not stop listening for thermal status", e);
+        }
+        thermalListener = null;
+    }
+
+    private void thermalStatus(int status) {
+        if (status >= THERMAL_STATUS_SEVERE) {
+            thermalTier = TIER_MINIMAL;
+        } else if (status >= THERMAL_STATUS_MODERATE) {
+            thermalTier = TIER_REDUCED;
+        } else {
+            thermalTier = TIER_NORMAL;
+        }
+        update();
+    }
+
+    private void update() {
+        int newTier = Math.max(memoryTier, thermalTier);
+        if (newTier == tier) return;
+        Log.i(TAG, "Resource tier " + tier + " -> " + newTier);
+        tier = newTier;
+        target.limitFrameRate(MAX_FPS[tier]);
+        target.limitResolution(RESOLUTION_FACTOR[tier]);
+        target.limitWorkers(MAX_WORKERS[tier]);
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Reorder buffer for frames decoded concurrently. Results are emitted in frame
+ * sequence order: a result is held back until every earlier frame that is still
+ * being decoded has finished. Anything older than the last emitted frame is
+ * discarded, as is everything once the sequencer is closed.
+ */
+class ResultSequencer<T> {
+    interface Emitter<T> {
+        void emit(T result);
+    }
+
+    private final Emitter<T> emitter;
+    private final TreeSet<Long> inFlight = new TreeSet<>();
+    private final TreeMap<Long, T> completed = new TreeMap<>();
+    private long lastEmitted = -1;
+    private boolean closed;
+
+    ResultSequencer(Emitter<T> emitter) {
+        this.emitter = emitter;
+    }
+
+    synchronized void submitted(long sequence) {
+        if (closed) return;
+        inFlight.add(sequence);
+    }
+
+    /**
+     * Marks a frame as finished. A null result means the frame produced nothing
+     * and only unblocks later frames.
+     */
+    void completed(long sequence, T result) {
+        synchronized (this) {
+            if (closed) return;
+            inFlight.remove(sequence);
+            if (sequence > lastEmitted && result != null) {
+                completed.put(sequence, result);
+            }
+        }
+        drain();
+    }
+
+    synchronized void clear() {
+        inFlight.clear();
+        completed.clear();
+    }
+
+    /**
+     * Drops whatever is pending, and every result completed from now on, so
+     * that frames still being decoded emit nothing.
+     */
+    synchronized void close() {
+        closed = true;
+        clear();
+    }
+
+    private void drain() {
+        while (true) {
+            T next;
+            synchronized (this) {
+                if (closed || completed.isEmpty()) return;
+                long first = completed.firstKey();
+                if (!inFlight.isEmpty() && inFlight.first() < first) return;
+                next = completed.remove(first);
+                lastEmitted = first;
+            }
+            emitter.emit(next);
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends every scan passed on to Dart to a local journal file, so that scans
+ * can be kept for audit without a round trip and a database write for each.
+ * The app reads the journal back in bulk when it needs it.
+ * <p>
+ * The file is a header followed by length-prefixed records: the length of the
+ * rest of the record, wall clock time in milliseconds, barcode format, a
+ * reference to the frame the value was read from (its capture timestamp, as
+ * FrameRecorder records it) and the value as UTF-8. Reading stops at a record
+ * cut short by a crash, and appending carries on from there.
+ * <p>
+ * Records are buffered and group committed, written and forced to disk, once
+ * COMMIT_BYTES have built up or COMMIT_INTERVAL_MS after the first one still
+ * buffered. Once a commit takes the file past its size limit it is rotated to
+ * name.1, moving older files along. Rotated files are all kept unless a limit
+ * is given, in which case the oldest beyond it are deleted with a warning.
+ * <p>
+ * Uses no Android APIs so that journals can be read on a plain JVM; problems
+ * are reported to the Logger it is given instead.
+ */
+class ScanJournal {
+    static final String TAG = "c.g.r.ScanJournal";
+
+    static final int MAGIC = 0x51524a4c; // "QRJL"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    // time, format and frame reference, after the length prefix
+    private static final int RECORD_FIXED_SIZE = 8 + 4 + 8;
+    static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    private static final int COMMIT_BYTES = 16 * 1024;
+    private static final long COMMIT_INTERVAL_MS = 1000;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    interface Logger {
+        void warn(String message, Throwable error);
+    }
+
+    static class Entry {
+        final long timeMillis;
+        final int format;
+        final long frameReference;
+        final String value;
+
+        Entry(long timeMillis, int format, long frameReference, String value) {
+            this.timeMillis = timeMillis;
+            this.format = format;
+            this.frameReference = frameReference;
+            this.value = value;
+        }
+    }
+
+    // shared by every journal, so that one opened right after another on the
+    // same path was closed only starts once the last commit of the other is on disk
+    private static final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ScanJournal");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    private final File path;
+    private final long maxBytes;
+    private final int maxRotated;
+    private final Logger logger;
+    // only touched on the writer thread
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(COMMIT_BYTES * 4);
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private ScheduledFuture<?> scheduledCommit;
+    private volatile boolean closed;
+
+    private final Runnable commitTask = new Runnable() {
+        @Override
+        public void run() {
+            scheduledCommit = null;
+            try {
+                commitBuffered();
+            } catch (IOException e) {
+                logger.warn("Could not commit scans", e);
+            }
+        }
+    };
+
+    /**
+     * Opens the journal at path, appending to it if it already exists.
+     *
+     * @param maxBytes   - size past which the file is rotated
+     * @param maxRotated - how many rotated files to keep, or 0 to keep them all
+     * @param logger     - told about scans that could not be journaled or were deleted
+     */
+    ScanJournal(File path, long maxBytes, int maxRotated, Logger logger) throws IOException {
+        this.path = path;
+        this.maxBytes = maxBytes;
+        this.maxRotated = maxRotated;
+        this.logger = logger;
+        await(writer.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                open();
+                return null;
+            }
+        }), path);
+    }
+
+    /**
+     * Queues a scan to be written with the next commit.
+     *
+     * @param frameReference - capture timestamp of the frame it was read from
+     */
+    void append(final String value, final int format, final long frameReference) {
+        if (closed) return;
+        final long timeMillis = System.currentTimeMillis();
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(timeMillis, format, frameReference, value);
+                } catch (IOException e) {
+                    logger.warn("Could not journal scan", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Commits whatever is buffered and waits until it is on disk. Blocks, so
+     * not for the main thread.
+     */
+    void commit() {
+        if (closed) {
+            // the close queued before this commits everything
+            return;
+        }
+        try {
+            Future<?> done = writer.submit(commitTask);
+            done.get();
+        } catch (ExecutionException e) {
+            logger.warn("Could not commit scans", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues a last commit and closing the file, without waiting for either,
+     * so that it can be called on the main thread. Scans appended after this
+     * are ignored.
+     */
+    synchronized void close() {
+        if (closed) return;
+        closed = true;
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (scheduledCommit != null) {
+                    scheduledCommit.cancel(false);
+                    scheduledCommit = null;
+                }
+                try {
+                    commitBuffered();
+                } catch (IOException e) {
+                    logger.warn("Could not commit scans", e);
+                } finally {
+                    try {
+                        file.close();
+                    } catch (IOException e) {
+                        logger.warn("Could not close " + path, e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the scans in the journal at path, rotated files included, oldest
+     * first. Runs on the writer thread, so that no rotation happens halfway
+     * through, and blocks until it is done.
+     *
+     * @param sinceMillis - only scans after this wall clock time
+     */
+    static List<Entry> read(final File path, final long sinceMillis) throws IOException {
+        return await(writer.submit(new Callable<List<Entry>>() {
+            @Override
+            public List<Entry> call() throws IOException {
+                List<Entry> entries = new ArrayList<>();
+                for (int i = rotatedCount(path); i >= 1; --i) {
+                    readFile(rotated(path, i), sinceMillis, entries);
+                }
+                if (path.isFile()) {
+                    readFile(path, sinceMillis, entries);
+                }
+                return entries;
+            }
+        }), path);
+    }
+
+    /**
+     * Waits for a task on the writer thread, passing on the IOException it threw.
+     */
+    private static <T> T await(Future<T> task, File path) throws IOException {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while using " + path);
+        }
+    }
+
+    private void write(long timeMillis, int format, long frameReference, String value) throws IOException {
+        byte[] utf8 = value.getBytes(UTF_8);
+        int length = RECORD_FIXED_SIZE + utf8.length;
+        if (4 + length > buffer.capacity()) {
+            logger.warn("Dropping a " + utf8.length + " byte value too long to journal", null);
+            return;
+        }
+        if (buffer.remaining() < 4 + length) {
+            commitBuffered();
+        }
+        buffer.putInt(length).putLong(timeMillis).putInt(format).putLong(frameReference).put(utf8);
+
+        if (buffer.position() >= COMMIT_BYTES) {
+            if (scheduledCommit != null) {
+                scheduledCommit.cancel(false);
+                scheduledCommit = null;
+            }
+            commitBuffered();
+        } else if (scheduledCommit == null) {
+            scheduledCommit = writer.schedule(commitTask, COMMIT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void commitBuffered() throws IOException {
+        if (buffer.position() == 0) return;
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+        channel.force(false);
+        if (channel.position() >= maxBytes) {
+            rotate();
+        }
+    }
+
+    private void rotate() throws IOException {
+        file.close();
+        int count = rotatedCount(path);
+        if (maxRotated > 0) {
+            for (int i = count; i >= maxRotated; --i) {
+                File oldest = rotated(path, i);
+                logger.warn("Deleting " + oldest + " and the " + oldest.length()
+                    + " bytes of scans in it, to keep " + maxRotated + " rotated journals", null);
+                if (!oldest.delete()) {
+                    throw new IOException("Could not delete " + oldest);
+                }
+            }
+            count = Math.min(count, maxRotated - 1);
+        }
+        for (int i = count; i >= 1; --i) {
+            File older = rotated(path, i);
+            if (!older.renameTo(rotated(path, i + 1))) {
+                throw new IOException("Could not rotate " + older);
+            }
+        }
+        if (!path.renameTo(rotated(path, 1))) {
+            throw new IOException("Could not rotate " + path);
+        }
+        open();
+    }
+
+    /**
+     * Opens the file for appending after its last complete record, or starts
+     * it with a header if it's new.
+     */
+    private void open() throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
+        if (channel.size() < HEADER_SIZE) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            channel.truncate(0);
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.position(HEADER_SIZE);
+            return;
+        }
+        long end;
+        try {
+            end = readFile(path, Long.MAX_VALUE, null);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        channel.truncate(end);
+        channel.position(end);
+    }
+
+    /**
+     * Adds the file's scans after sinceMillis to entries, if given.
+     *
+     * @return the offset just past the last complete record
+     */
+    private static long readFile(File file, long sinceMillis, List<Entry> entries) throws IOException {
+        ByteBuffer contents;
+        try (RandomAccessFile input = new RandomAccessFile(file, "r");
+             FileChannel channel = input.getChannel()) {
+            contents = ByteBuffer.allocate((int) channel.size());
+            while (contents.hasRemaining() && channel.read(contents) >= 0) {
+                // keep reading
+            }
+        }
+        contents.flip();
+        if (contents.limit() < HEADER_SIZE || contents.getInt(0) != MAGIC) {
+            throw new IOException("Not a scan journal: " + file);
+        }
+        int version = contents.getInt(4);
+        if (version != VERSION) {
+            throw new IOException("Unsupported scan journal version " + version);
+        }
+
+        int position = HEADER_SIZE;
+        while (position + 4 <= contents.limit()) {
+            int length = contents.getInt(position);
+            if (length < RECORD_FIXED_SIZE || position + 4 + length > contents.limit()) {
+                // last record was only partly written
+                break;
+            }
+            if (entries != null) {
+                long timeMillis = contents.getLong(position + 4);
+                if (timeMillis > sinceMillis) {
+                    byte[] value = new byte[length - RECORD_FIXED_SIZE];
+                    ByteBuffer record = contents.duplicate();
+                    record.position(position + 4 + RECORD_FIXED_SIZE);
+                    record.get(value);
+                    entries.add(new Entry(timeMillis, contents.getInt(position + 12),
+                        contents.getLong(position + 16), new String(value, UTF_8)));
+                }
+            }
+            position += 4 + length;
+        }
+        return position;
+    }
+
+    /**
+     * How many rotated files there are, counting up from name.1 to the first missing one.
+     */
+    private static int rotatedCount(File path) {
+        int count = 0;
+        while (rotated(path, count + 1).isFile()) {
+            ++count;
+        }
+        return count;
+    }
+
+    private static File rotated(File path, int generation) {
+        return new File(path.getPath() + "." + generation);
+    }
+}
@@ -0,0 +1,86 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Skips frames too blurry to be worth decoding. Sharpness is the mean squared
+ * luma gradient over a sparse grid of samples, and the threshold is learned
+ * from the sharpness of the frames that codes were actually found in, so it
+ * follows the device, the scene and the lighting.
+ * <p>
+ * Until enough frames have decoded nothing is skipped, and now and then a
+ * frame below the threshold is let through anyway, so the threshold can come
+ * down again when the scene changes.
+ * <p>
+ * Uses no Android APIs so that it can be run over recordings off-device.
+ */
+class SharpnessFilter {
+    // samples taken along each axis of the scored area, at most
+    private static final int SAMPLES_PER_AXIS = 64;
+    // decoded frames needed before anything is skipped
+    private static final int WARM_UP = 10;
+    // the threshold is this fraction of the sharpness most decoded frames are above
+    private static final float QUANTILE = 0.1f;
+    private static final float MARGIN = 0.5f;
+    private static final float LEARNING_RATE = 0.1f;
+    // one in this many frames below the threshold is decoded anyway
+    private static final int PROBE_INTERVAL = 10;
+
+    private int decodedFrames;
+    private float decodedFloor;
+    private int skipped;
+
+    /**
+     * Mean squared difference between each sampled luma value and its right
+     * and lower neighbours, within the given part of the frame.
+     *
+     * @param stride - bytes from the start of one row of the luma plane to the next
+     */
+    static float score(ByteBuffer luma, int stride, int left, int top, int right, int bottom) {
+        // leave room for the neighbours
+        right -= 1;
+        bottom -= 1;
+        if (right <= left || bottom <= top) return 0;
+        int stepX = Math.max(1, (right - left) / SAMPLES_PER_AXIS);
+        int stepY = Math.max(1, (bottom - top) / SAMPLES_PER_AXIS);
+
+        long sum = 0;
+        int samples = 0;
+        for (int y = top; y < bottom; y += stepY) {
+            int row = y * stride;
+            for (int x = left; x < right; x += stepX) {
+                int centre = luma.get(row + x) & 0xff;
+                int dx = (luma.get(row + x + 1) & 0xff) - centre;
+                int dy = (luma.get(row + stride + x) & 0xff) - centre;
+                sum += dx * dx + dy * dy;
+                ++samples;
+            }
+        }
+        return samples == 0 ? 0 : (float) sum / samples;
+    }
+
+    /**
+     * @return whether a frame this sharp should be decoded
+     */
+    synchronized boolean accept(float score) {
+        if (decodedFrames < WARM_UP || score >= decodedFloor * MARGIN) {
+            skipped = 0;
+            return true;
+        }
+        return ++skipped % PROBE_INTERVAL == 0;
+    }
+
+    /**
+     * Learns from the outcome of decoding a frame that was accepted.
+     */
+    synchronized void decoded(float score, boolean found) {
+        if (!found) return;
+        if (decodedFrames++ == 0) {
+            decodedFloor = score;
+            return;
+        }
+        // tracks the QUANTILE of decoded scores, in steps relative to its size
+        float below = score < decodedFloor ? 1 : 0;
+        decodedFloor += LEARNING_RATE * decodedFloor * (QUANTILE - below);
+    }
+}
@@ -1,7 +1,6 @@
 package com.github.rmtmckenzie.qrmobilevision;
 
 import android.graphics.Bitmap;
-import android.graphics.Matrix;
 import android.util.SparseArray;
 import android.content.Context;
 import android.graphics.YuvImage;
@@ -15,11 +14,6 @@ import com.google.android.gms.vision.barcode.BarcodeDetector;
 import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
 
-import android.renderscript.ScriptIntrinsicYuvToRGB;
-import android.renderscript.Allocation;
-import android.renderscript.RenderScript;
-import android.renderscript.Element;
-
 public class SplitBarcodeDetector extends Detector<Barcode> {
 
     private final BarcodeDetector detector;
@@ -34,30 +28,17 @@ public class SplitBarcodeDetector extends Detector<Barcode> {
         void receiveQr(Barcode data);
     }
 
-    RenderScript rs;
-    Allocation aIn;
-    Bitmap bmpout;
-    Allocation aOut;
-    ScriptIntrinsicYuvToRGB yuvToRgbIntrinsic;
+    private final YuvConverter converter = new YuvConverter(Runtime.getRuntime().availableProcessors());
+    private Bitmap bmpout;
+    private int[] pixels;
 
     public SplitBarcodeDetector(Context context, FrameReceiver frameReceiver, QRReceiver qrReceiver) {
         this.detector = new BarcodeDetector.Builder(context.getApplicationContext()).setBarcodeFormats(
                 Barcode.QR_CODE).build();
         this.frameReceiver = frameReceiver;
         this.qrReceiver = qrReceiver;
-
-        rs = RenderScript.create(context);
-        yuvToRgbIntrinsic = ScriptIntrinsicYuvToRGB.create(rs, Element.U8_4(rs));
     }
 
-    Bitmap rotateBitmap(Bitmap source, int rotation){
-        Matrix matrix = new Matrix();
-        matrix.postRotate(rotation*90);
-        source = Bitmap.createBitmap(source,0,0,source.getWidth(),source.getHeight(),matrix,true);
-        return source;
-    }
-
-
     @Override
     public SparseArray<Barcode> detect(Frame frame) {
         Bitmap bitmap = frame.getBitmap();
@@ -69,20 +50,17 @@ public class SplitBarcodeDetector extends Detector<Barcode> {
             int format = metadata.getFormat();
             int rotation = metadata.getRotation(); // 0=0,1=90,2=180,3=270 : CC from upright orientation
 
-            //TODO: allocate these arrays in a smarter way
-            int yuvDatalength = width * height * 3/2;  // this is 12 bit per pixel
-            aIn = Allocation.createSized(rs, Element.U8(rs), yuvDatalength);
-            bmpout = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-            aOut = Allocation.createFromBitmap(rs, bmpout);
-            yuvToRgbIntrinsic.setInput(aIn);
+            // reuse the output between frames of the same size
+            if (bmpout == null || bmpout.getWidth() != width || bmpout.getHeight() != height) {
+                bmpout = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                pixels = new int[width * height];
+            }
 
             ByteBuffer imageData = frame.getGrayscaleImageData();
-            aIn.copyFrom(imageData.array());
-            yuvToRgbIntrinsic.forEach(aOut);
-            aOut.copyTo(bmpout);
-
-            bmpout=rotateBitmap(bmpout,rotation);
+            converter.convertNV21(imageData.array(), width, height, 1, 0, pixels);
+            bmpout.setPixels(pixels, 0, width, 0, 0, width, height);
 
+            // the frame is passed on unrotated, along with its rotation, rather than rotating every frame's pixels
 
             int bytes = bmpout.getByteCount();
             ByteBuffer buffer = ByteBuffer.allocate(bytes);
@@ -126,6 +104,13 @@ public class SplitBarcodeDetector extends Detector<Barcode> {
         return detectedItems;
     }
 
+    @Override
+    public void release() {
+        converter.release();
+        detector.release();
+        super.release();
+    }
+
     @Override
     public void receiveFrame(Frame frame) {
         detect(frame);
@@ -0,0 +1,165 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.barcode.Barcode;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Splits each frame into a grid of overlapping tiles and decodes the tiles in
+ * parallel, so that small codes in high resolution frames are found without one
+ * thread having to work through the whole frame.
+ * <p>
+ * Detected barcodes have their corner points moved back into full-frame
+ * coordinates, and codes seen in more than one tile are only reported once.
+ */
+class TiledBarcodeDetector extends Detector<Barcode> {
+    private static final String TAG = "c.g.r.TiledDetector";
+
+    private final DetectorPool pool;
+    private final ExecutorService executor;
+    private final int rows, columns;
+    private final float overlap;
+
+    TiledBarcodeDetector(DetectorPool pool, int rows, int columns, float overlap) {
+        this.pool = pool;
+        this.executor = Executors.newFixedThreadPool(pool.size());
+        this.rows = rows;
+        this.columns = columns;
+        this.overlap = overlap;
+    }
+
+    @Override
+    public SparseArray<Barcode> detect(Frame frame) {
+        Frame.Metadata metadata = frame.getMetadata();
+        final int width = metadata.getWidth(), height = metadata.getHeight();
+        final int rotation = metadata.getRotation();
+        final Bitmap bitmap = frame.getBitmap();
+        // the frame's own buffer, which may be the camera's; crops are copied out of it
+        final ByteBuffer nv21 = bitmap == null ? frame.getGrayscaleImageData() : null;
+
+        List<Future<List<Barcode>>> futures = new ArrayList<>(rows * columns);
+        for (final Rect tile : tiles(width, height)) {
+            futures.add(executor.submit(new Callable<List<Barcode>>() {
+                @Override
+                public List<Barcode> call() throws Exception {
+                    Frame.Builder builder = new Frame.Builder().setRotation(rotation);
+                    if (bitmap != null) {
+                        builder.setBitmap(Bitmap.createBitmap(bitmap, tile.left, tile.top, tile.width(), tile.height()));
+                    } else {
+                        byte[] cropped = QrDetector.cropNV21(nv21, width, height, tile, null);
+                        builder.setImageData(ByteBuffer.wrap(cropped), tile.width(), tile.height(), ImageFormat.NV21);
+                    }
+
+                    SparseArray<Barcode> detected;
+                    Detector<Barcode> detector = pool.acquire();
+                    try {
+                        detected = detector.detect(builder.build());
+                    } finally {
+                        pool.release(detector);
+                    }
+                    FrameOrientation.toSensor(detected, rotation, tile.width(), tile.height());
+
+                    List<Barcode> barcodes = new ArrayList<>(detected.size());
+                    for (int i = 0; i < detected.size(); ++i) {
+                        Barcode barcode = detected.valueAt(i);
+                        if (barcode.cornerPoints != null) {
+                            for (Point point : barcode.cornerPoints) {
+                                point.offset(tile.left, tile.top);
+                            }
+                        }
+                        barcodes.add(barcode);
+                    }
+                    return barcodes;
+                }
+            }));
+        }
+
+        List<Barcode> merged = new ArrayList<>();
+        for (Future<List<Barcode>> future : futures) {
+            try {
+                for (Barcode barcode : future.get()) {
+                    addIfNew(merged, barcode);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                Log.w(TAG, "Decoding tile failed", e.getCause());
+            }
+        }
+
+        SparseArray<Barcode> result = new SparseArray<>(merged.size());
+        for (int i = 0; i < merged.size(); ++i) {
+            result.append(i, merged.get(i));
+        }
+        // report in the same upright coordinates as a plain detector given this frame would
+        FrameOrientation.toUpright(result, rotation, width, height);
+        return result;
+    }
+
+    @Override
+    public void release() {
+        executor.shutdown();
+        pool.releaseAll();
+        super.release();
+    }
+
+    /**
+     * Returns the tile rectangles, each grown by the overlap fraction on all sides
+     * and kept on even coordinates for NV21 chroma.
+     */
+    List<Rect> tiles(int width, int height) {
+        int tileWidth = width / columns, tileHeight = height / rows;
+        int padX = (int) (tileWidth * overlap / 2), padY = (int) (tileHeight * overlap / 2);
+
+        List<Rect> tiles = new ArrayList<>(rows * columns);
+        for (int row = 0; row < rows; ++row) {
+            for (int column = 0; column < columns; ++column) {
+                Rect tile = new Rect(
+                    Math.max(0, column * tileWidth - padX) & ~1,
+                    Math.max(0, row * tileHeight - padY) & ~1,
+                    Math.min(width, (column + 1) * tileWidth + padX) & ~1,
+                    Math.min(height, (row + 1) * tileHeight + padY) & ~1);
+                tiles.add(tile);
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Keeps one of each code found in several tiles, preferring the larger sighting
+     * since one cut by a tile edge can only be smaller.
+     */
+    private static void addIfNew(List<Barcode> merged, Barcode barcode) {
+        Rect box = barcode.getBoundingBox();
+        for (int i = 0; i < merged.size(); ++i) {
+            Barcode existing = merged.get(i);
+            if (!existing.rawValue.equals(barcode.rawValue)) continue;
+
+            Rect existingBox = existing.getBoundingBox();
+            if (Rect.intersects(box, existingBox)) {
+                if (box.width() * box.height() > existingBox.width() * existingBox.height()) {
+                    merged.set(i, barcode);
+                }
+                return;
+            }
+        }
+        merged.add(barcode);
+    }
+}
@@ -0,0 +1,190 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Converts YUV frames (NV21, or YUV_420_888 planes with any row and pixel
+ * stride) to ARGB_8888 pixels using BT.601 fixed-point lookup tables.
+ * Downscaling by an integer factor and rotation by a multiple of 90 degrees
+ * are done in the same pass, and the output rows are split into stripes that
+ * are converted in parallel.
+ * <p>
+ * Uses no Android APIs so that it can run and be measured on a plain JVM.
+ */
+class YuvConverter {
+    private static final int SHIFT = 10;
+
+    private static final int[] Y_TABLE = new int[256];
+    private static final int[] RV_TABLE = new int[256];
+    private static final int[] GV_TABLE = new int[256];
+    private static final int[] GU_TABLE = new int[256];
+    private static final int[] BU_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; ++i) {
+            Y_TABLE[i] = Math.round(1.164f * (i - 16) * (1 << SHIFT));
+            RV_TABLE[i] = Math.round(1.596f * (i - 128) * (1 << SHIFT));
+            GV_TABLE[i] = Math.round(-0.813f * (i - 128) * (1 << SHIFT));
+            GU_TABLE[i] = Math.round(-0.391f * (i - 128) * (1 << SHIFT));
+            BU_TABLE[i] = Math.round(2.018f * (i - 128) * (1 << SHIFT));
+        }
+    }
+
+    private final int stripes;
+    private final ExecutorService executor;
+
+    /**
+     * @param threads - number of stripes converted in parallel; 1 converts on the calling thread
+     */
+    YuvConverter(int threads) {
+        this.stripes = Math.max(1, threads);
+        this.executor = stripes > 1 ? Executors.newFixedThreadPool(stripes) : null;
+    }
+
+    void release() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    static int outputWidth(int width, int height, int scale, int rotation) {
+        return rotation % 180 == 0 ? width / scale : height / scale;
+    }
+
+    static int outputHeight(int width, int height, int scale, int rotation) {
+        return rotation % 180 == 0 ? height / scale : width / scale;
+    }
+
+    /**
+     * Converts an NV21 frame into out, which must hold at least
+     * outputWidth * outputHeight pixels.
+     *
+     * @param scale    - integer downscale factor, 1 for none
+     * @param rotation - clockwise rotation in degrees: 0, 90, 180 or 270
+     */
+    void convertNV21(byte[] nv21, int width, int height, int scale, int rotation, int[] out) {
+        ByteBuffer buffer = ByteBuffer.wrap(nv21);
+        int chroma = width * height;
+        // NV21 chroma is interleaved V then U
+        Planes planes = new Planes(buffer, 0, width,
+            buffer, chroma + 1, buffer, chroma, width, 2);
+        convert(planes, width, height, scale, rotation, out);
+    }
+
+    /**
+     * Converts YUV_420_888 planes into out. The buffers are read with absolute
+     * gets, so their positions are left alone.
+     */
+    void convertYuv420(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v, int uvRowStride, int uvPixelStride,
+                       int width, int height, int scale, int rotation, int[] out) {
+        Planes planes = new Planes(y, 0, yRowStride, u, 0, v, 0, uvRowStride, uvPixelStride);
+        convert(planes, width, height, scale, rotation, out);
+    }
+
+    private void convert(final Planes planes, final int width, final int height, final int scale,
+                         final int rotation, final int[] out) {
+        final int outWidth = outputWidth(width, height, scale, rotation);
+        final int outHeight = outputHeight(width, height, scale, rotation);
+        if (out.length < outWidth * outHeight) {
+            throw new IllegalArgumentException("Output buffer too small for " + outWidth + "x" + outHeight);
+        }
+
+        if (executor == null || outHeight < stripes) {
+            convertRows(planes, width, height, scale, rotation, out, 0, outHeight);
+            return;
+        }
+
+        int rowsPerStripe = (outHeight + stripes - 1) / stripes;
+        List<Future<?>> futures = new ArrayList<>(stripes);
+        for (int start = 0; start < outHeight; start += rowsPerStripe) {
+            final int from = start, to = Math.min(outHeight, start + rowsPerStripe);
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    convertRows(planes, width, height, scale, rotation, out, from, to);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    private static void convertRows(Planes p, int width, int height, int scale, int rotation,
+                                    int[] out, int fromRow, int toRow) {
+        int scaledWidth = width / scale, scaledHeight = height / scale;
+        int outWidth = outputWidth(width, height, scale, rotation);
+
+        for (int oy = fromRow; oy < toRow; ++oy) {
+            int outPos = oy * outWidth;
+            for (int ox = 0; ox < outWidth; ++ox) {
+                int px, py;
+                switch (rotation) {
+                    case 90:
+                        px = oy;
+                        py = scaledHeight - 1 - ox;
+                        break;
+                    case 180:
+                        px = scaledWidth - 1 - ox;
+                        py = scaledHeight - 1 - oy;
+                        break;
+                    case 270:
+                        px = scaledWidth - 1 - oy;
+                        py = ox;
+                        break;
+                    default:
+                        px = ox;
+                        py = oy;
+                }
+                int sx = px * scale, sy = py * scale;
+
+                int yValue = p.y.get(p.yOffset + sy * p.yRowStride + sx) & 0xff;
+                int uvIndex = (sy >> 1) * p.uvRowStride + (sx >> 1) * p.uvPixelStride;
+                int uValue = p.u.get(p.uOffset + uvIndex) & 0xff;
+                int vValue = p.v.get(p.vOffset + uvIndex) & 0xff;
+
+                int luma = Y_TABLE[yValue];
+                int r = clamp((luma + RV_TABLE[vValue]) >> SHIFT);
+                int g = clamp((luma + GV_TABLE[vValue] + GU_TABLE[uValue]) >> SHIFT);
+                int b = clamp((luma + BU_TABLE[uValue]) >> SHIFT);
+                out[outPos++] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    private static class Planes {
+        final ByteBuffer y, u, v;
+        final int yOffset, uOffset, vOffset;
+        final int yRowStride, uvRowStride, uvPixelStride;
+
+        Planes(ByteBuffer y, int yOffset, int yRowStride, ByteBuffer u, int uOffset, ByteBuffer v, int vOffset,
+               int uvRowStride, int uvPixelStride) {
+            this.y = y;
+            this.yOffset = yOffset;
+            this.yRowStride = yRowStride;
+            this.u = u;
+            this.uOffset = uOffset;
+            this.v = v;
+            this.vOffset = vOffset;
+            this.uvRowStride = uvRowStride;
+            this.uvPixelStride = uvPixelStride;
+        }
+    }
+}
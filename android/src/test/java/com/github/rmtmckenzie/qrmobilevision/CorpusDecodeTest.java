@@ -0,0 +1,79 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.MultiFormatReader;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.PlanarYUVLuminanceSource;
+import com.google.zxing.common.HybridBinarizer;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the symbols CorpusGenerator renders are real barcodes, by reading
+ * the clean and multi entries of the golden-frame corpus with zxing. The other
+ * conditions are meant to be hard to read, so they aren't held to this.
+ */
+public class CorpusDecodeTest {
+    private static final File CORPUS = new File("src/benchmark/corpus/corpus.tsv");
+
+    @Test
+    public void cleanSymbolsDecode() throws Exception {
+        List<String> failures = new ArrayList<>();
+        int checked = 0;
+        for (CorpusGenerator.Entry entry : CorpusGenerator.read(CORPUS)) {
+            if (!entry.condition.equals("clean") && !entry.condition.equals("multi")) continue;
+            ++checked;
+            List<String> found = decode(entry);
+            for (String value : entry.values) {
+                if (!FrameBenchmark.containsValue(found, value)) {
+                    failures.add(entry.name + ": expected " + value + ", read " + found);
+                }
+            }
+        }
+        assertTrue("No clean entries in " + CORPUS, checked > 0);
+        if (!failures.isEmpty()) {
+            fail(failures.size() + " corpus symbols did not decode:\n" + String.join("\n", failures));
+        }
+    }
+
+    /**
+     * Reads each slot of the frame on its own, since multi entries render one
+     * symbol per horizontal slot, just as CorpusGenerator lays them out.
+     */
+    private static List<String> decode(CorpusGenerator.Entry entry) {
+        byte[] nv21 = CorpusGenerator.render(entry);
+        Map<DecodeHintType, Object> hints = new EnumMap<>(DecodeHintType.class);
+        hints.put(DecodeHintType.POSSIBLE_FORMATS, Collections.singletonList(BarcodeFormat.valueOf(entry.format)));
+        hints.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
+        MultiFormatReader reader = new MultiFormatReader();
+        reader.setHints(hints);
+
+        int count = entry.condition.equals("multi") ? entry.values.size() : 1;
+        int slotWidth = entry.width / count;
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < count; ++i) {
+            PlanarYUVLuminanceSource source = new PlanarYUVLuminanceSource(nv21, entry.width, entry.height,
+                i * slotWidth, 0, slotWidth, entry.height, false);
+            try {
+                values.add(reader.decode(new BinaryBitmap(new HybridBinarizer(source))).getText());
+            } catch (NotFoundException e) {
+                // nothing read in this slot
+            } finally {
+                reader.reset();
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,100 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips frames through FrameRecorder and FrameReplayer.
+ */
+public class FrameRecordingTest {
+    private static final int FRAME_SIZE = 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> warnings = new ArrayList<>();
+    private final FrameRecorder.Logger logger = new FrameRecorder.Logger() {
+        @Override
+        public void warn(String message, Throwable error) {
+            synchronized (warnings) {
+                warnings.add(message);
+            }
+        }
+    };
+
+    @Test
+    public void replaysWhatWasRecorded() throws Exception {
+        File file = folder.newFile();
+        record(new FrameRecorder(file, logger), 5);
+
+        FrameReplayer replayer = new FrameReplayer(file);
+        assertEquals(5, replayer.frameCount());
+        for (int i = 0; i < 5; ++i) {
+            checkFrame(replayer.frame(i), i);
+        }
+        replayer.close();
+        assertTrue(warnings.isEmpty());
+    }
+
+    @Test
+    public void stopsRecordingAtTheSizeLimit() throws Exception {
+        File file = folder.newFile();
+        long maxBytes = 10000;
+        record(new FrameRecorder(file, maxBytes, logger), 20);
+
+        assertTrue(file.length() <= maxBytes);
+        assertEquals(1, warnings.size());
+        FrameReplayer replayer = new FrameReplayer(file);
+        assertTrue(replayer.frameCount() > 0 && replayer.frameCount() < 20);
+        for (int i = 0; i < replayer.frameCount(); ++i) {
+            checkFrame(replayer.frame(i), i);
+        }
+        replayer.close();
+    }
+
+    @Test
+    public void readsRecordingCutShort() throws Exception {
+        File file = folder.newFile();
+        record(new FrameRecorder(file, logger), 5);
+        // lose the index and half of the fourth frame
+        RandomAccessFile cut = new RandomAccessFile(file, "rw");
+        cut.setLength(FrameRecorder.HEADER_SIZE + 3 * (FrameRecorder.RECORD_HEADER_SIZE + FRAME_SIZE) + 500);
+        cut.close();
+
+        FrameReplayer replayer = new FrameReplayer(file);
+        assertEquals(3, replayer.frameCount());
+        checkFrame(replayer.frame(2), 2);
+        replayer.close();
+    }
+
+    private static void record(FrameRecorder recorder, int frames) throws InterruptedException {
+        for (int i = 0; i < frames; ++i) {
+            byte[] bytes = new byte[FRAME_SIZE];
+            bytes[0] = (byte) i;
+            recorder.record(bytes, i * 1000L, FrameRecorder.FORMAT_NV21, 40, 20, 40, 90);
+            // frames are dropped rather than queued if the writer falls behind
+            Thread.sleep(5);
+        }
+        recorder.close();
+        assertTrue(recorder.awaitClosed(5, TimeUnit.SECONDS));
+    }
+
+    private static void checkFrame(FrameReplayer.RecordedFrame frame, int index) {
+        assertEquals(index * 1000L, frame.timestampNanos);
+        assertEquals(FrameRecorder.FORMAT_NV21, frame.format);
+        assertEquals(40, frame.width);
+        assertEquals(90, frame.rotation);
+        assertEquals(FRAME_SIZE, frame.data.remaining());
+        assertEquals(index, frame.data.get(0));
+    }
+}
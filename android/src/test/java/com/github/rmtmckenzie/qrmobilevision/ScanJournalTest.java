@@ -0,0 +1,146 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes scans through ScanJournal and reads them back.
+ */
+public class ScanJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> warnings = new ArrayList<>();
+    private final ScanJournal.Logger logger = new ScanJournal.Logger() {
+        @Override
+        public void warn(String message, Throwable error) {
+            synchronized (warnings) {
+                warnings.add(message);
+            }
+        }
+    };
+
+    @Test
+    public void readsBackCommittedScans() throws Exception {
+        File path = new File(folder.getRoot(), "scans");
+        ScanJournal journal = new ScanJournal(path, ScanJournal.DEFAULT_MAX_BYTES, 0, logger);
+        journal.append("first", 256, 1000L);
+        journal.append("zweiter Straße ✓ 二", 1, 2000L);
+        journal.commit();
+
+        List<ScanJournal.Entry> entries = ScanJournal.read(path, 0);
+        assertEquals(2, entries.size());
+        assertEquals("first", entries.get(0).value);
+        assertEquals(256, entries.get(0).format);
+        assertEquals(1000L, entries.get(0).frameReference);
+        assertEquals("zweiter Straße ✓ 二", entries.get(1).value);
+        assertEquals(2000L, entries.get(1).frameReference);
+        journal.close();
+        assertTrue(warnings.isEmpty());
+    }
+
+    @Test
+    public void appendsAfterRecordCutShort() throws Exception {
+        File path = new File(folder.getRoot(), "scans");
+        ScanJournal journal = new ScanJournal(path, ScanJournal.DEFAULT_MAX_BYTES, 0, logger);
+        journal.append("kept", 256, 1L);
+        journal.append("torn", 256, 2L);
+        journal.commit();
+        journal.close();
+        // lose the end of the second record, as a crash mid-write would
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        file.setLength(file.length() - 2);
+        file.close();
+
+        assertEquals(1, ScanJournal.read(path, 0).size());
+        journal = new ScanJournal(path, ScanJournal.DEFAULT_MAX_BYTES, 0, logger);
+        journal.append("after", 256, 3L);
+        journal.commit();
+        List<ScanJournal.Entry> entries = ScanJournal.read(path, 0);
+        assertEquals(2, entries.size());
+        assertEquals("kept", entries.get(0).value);
+        assertEquals("after", entries.get(1).value);
+        journal.close();
+    }
+
+    @Test
+    public void reopenedJournalFollowsTheClosedOne() throws Exception {
+        File path = new File(folder.getRoot(), "scans");
+        ScanJournal journal = new ScanJournal(path, ScanJournal.DEFAULT_MAX_BYTES, 0, logger);
+        journal.append("before close", 256, 1L);
+        // queues the last commit without waiting for it
+        journal.close();
+        journal.append("after close", 256, 2L);
+
+        ScanJournal reopened = new ScanJournal(path, ScanJournal.DEFAULT_MAX_BYTES, 0, logger);
+        reopened.append("reopened", 256, 3L);
+        reopened.commit();
+        List<ScanJournal.Entry> entries = ScanJournal.read(path, 0);
+        assertEquals(2, entries.size());
+        assertEquals("before close", entries.get(0).value);
+        assertEquals("reopened", entries.get(1).value);
+        reopened.close();
+        assertTrue(warnings.isEmpty());
+    }
+
+    @Test
+    public void keepsEveryRotatedFileByDefault() throws Exception {
+        File path = new File(folder.getRoot(), "scans");
+        ScanJournal journal = new ScanJournal(path, 100, 0, logger);
+        appendEach(journal, 20);
+
+        assertTrue(new File(path.getPath() + ".5").isFile());
+        List<ScanJournal.Entry> entries = ScanJournal.read(path, 0);
+        assertEquals(20, entries.size());
+        for (int i = 0; i < 20; ++i) {
+            assertEquals("scan " + i, entries.get(i).value);
+        }
+        journal.close();
+        assertTrue(warnings.isEmpty());
+    }
+
+    @Test
+    public void warnsAboutEachRotatedFileDeleted() throws Exception {
+        File path = new File(folder.getRoot(), "scans");
+        ScanJournal journal = new ScanJournal(path, 100, 2, logger);
+        appendEach(journal, 20);
+
+        assertTrue(new File(path.getPath() + ".2").isFile());
+        assertTrue(!new File(path.getPath() + ".3").exists());
+        List<ScanJournal.Entry> entries = ScanJournal.read(path, 0);
+        assertEquals("scan 19", entries.get(entries.size() - 1).value);
+        assertEquals(20 - entries.size(), 4 * warnings.size());
+        journal.close();
+    }
+
+    @Test
+    public void warnsAboutValuesTooLongToJournal() throws Exception {
+        File path = new File(folder.getRoot(), "scans");
+        ScanJournal journal = new ScanJournal(path, ScanJournal.DEFAULT_MAX_BYTES, 0, logger);
+        journal.append(new String(new char[100 * 1024]).replace('\0', 'x'), 256, 1L);
+        journal.commit();
+
+        assertEquals(0, ScanJournal.read(path, 0).size());
+        assertEquals(1, warnings.size());
+        journal.close();
+    }
+
+    /**
+     * Commits each scan on its own, which at 30 bytes a scan rotates the file after every fourth.
+     */
+    private static void appendEach(ScanJournal journal, int count) {
+        for (int i = 0; i < count; ++i) {
+            journal.append("scan " + i, 256, i);
+            journal.commit();
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.github.rmtmckenzie.qrmobilevision;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks YuvConverter against a straightforward floating point BT.601
+ * conversion of the unrotated frame, for every rotation, a few scale factors
+ * and the plane layouts cameras hand over.
+ */
+public class YuvConverterTest {
+    private static final int WIDTH = 38, HEIGHT = 26;
+    private static final int[] ROTATIONS = {0, 90, 180, 270};
+    private static final int[] SCALES = {1, 2, 3};
+    // rounding in the fixed point tables
+    private static final int TOLERANCE = 2;
+
+    private final Random random = new Random(42);
+    private final byte[] luma = randomPlane(WIDTH * HEIGHT);
+    private final byte[] u = randomPlane(WIDTH / 2 * (HEIGHT / 2));
+    private final byte[] v = randomPlane(WIDTH / 2 * (HEIGHT / 2));
+
+    @Test
+    public void convertsNV21() {
+        byte[] nv21 = new byte[WIDTH * HEIGHT * 3 / 2];
+        System.arraycopy(luma, 0, nv21, 0, luma.length);
+        for (int i = 0; i < u.length; ++i) {
+            nv21[luma.length + 2 * i] = v[i];
+            nv21[luma.length + 2 * i + 1] = u[i];
+        }
+        for (int threads : new int[]{1, 3}) {
+            YuvConverter converter = new YuvConverter(threads);
+            for (int rotation : ROTATIONS) {
+                for (int scale : SCALES) {
+                    int[] out = output(scale, rotation);
+                    converter.convertNV21(nv21, WIDTH, HEIGHT, scale, rotation, out);
+                    check("NV21", scale, rotation, out);
+                }
+            }
+            converter.release();
+        }
+    }
+
+    @Test
+    public void convertsYV12WithOddStrides() {
+        // luma plane, then a V plane and a U plane at half the row stride
+        int yStride = WIDTH + 5, uvStride = yStride / 2;
+        int yvSize = yStride * HEIGHT, chromaSize = uvStride * (HEIGHT / 2);
+        byte[] yv12 = filler(yvSize + 2 * chromaSize);
+        copyPlane(luma, WIDTH, HEIGHT, yv12, 0, yStride, 1);
+        copyPlane(v, WIDTH / 2, HEIGHT / 2, yv12, yvSize, uvStride, 1);
+        copyPlane(u, WIDTH / 2, HEIGHT / 2, yv12, yvSize + chromaSize, uvStride, 1);
+
+        ByteBuffer buffer = ByteBuffer.wrap(yv12);
+        ByteBuffer vPlane = slice(buffer, yvSize);
+        ByteBuffer uPlane = slice(buffer, yvSize + chromaSize);
+        convertPlanes("YV12", buffer, yStride, uPlane, vPlane, uvStride, 1);
+    }
+
+    @Test
+    public void convertsSemiPlanarYuv420WithOddStrides() {
+        // what most Camera2 devices hand over: U and V views of one interleaved plane
+        int yStride = WIDTH + 3, uvStride = WIDTH + 7;
+        ByteBuffer y = ByteBuffer.allocateDirect(yStride * HEIGHT);
+        byte[] yBytes = filler(yStride * HEIGHT);
+        copyPlane(luma, WIDTH, HEIGHT, yBytes, 0, yStride, 1);
+        y.put(yBytes).rewind();
+
+        byte[] uv = filler(uvStride * (HEIGHT / 2));
+        copyPlane(u, WIDTH / 2, HEIGHT / 2, uv, 0, uvStride, 2);
+        copyPlane(v, WIDTH / 2, HEIGHT / 2, uv, 1, uvStride, 2);
+        ByteBuffer uvBuffer = ByteBuffer.allocateDirect(uv.length);
+        uvBuffer.put(uv).rewind();
+
+        convertPlanes("YUV_420_888 semi-planar", y, yStride, slice(uvBuffer, 0), slice(uvBuffer, 1), uvStride, 2);
+    }
+
+    @Test
+    public void convertsPlanarYuv420WithOddStrides() {
+        int yStride = WIDTH + 1, uvStride = WIDTH / 2 + 3;
+        byte[] yBytes = filler(yStride * HEIGHT);
+        copyPlane(luma, WIDTH, HEIGHT, yBytes, 0, yStride, 1);
+        byte[] uBytes = filler(uvStride * (HEIGHT / 2));
+        copyPlane(u, WIDTH / 2, HEIGHT / 2, uBytes, 0, uvStride, 1);
+        byte[] vBytes = filler(uvStride * (HEIGHT / 2));
+        copyPlane(v, WIDTH / 2, HEIGHT / 2, vBytes, 0, uvStride, 1);
+
+        convertPlanes("YUV_420_888 planar", ByteBuffer.wrap(yBytes), yStride,
+            ByteBuffer.wrap(uBytes), ByteBuffer.wrap(vBytes), uvStride, 1);
+    }
+
+    @Test
+    public void leavesBufferPositionsAlone() {
+        ByteBuffer y = ByteBuffer.wrap(luma.clone());
+        ByteBuffer uPlane = ByteBuffer.wrap(u.clone());
+        ByteBuffer vPlane = ByteBuffer.wrap(v.clone());
+        y.position(3);
+        new YuvConverter(1).convertYuv420(y, WIDTH, uPlane, vPlane, WIDTH / 2, 1,
+            WIDTH, HEIGHT, 1, 0, output(1, 0));
+        assertEquals(3, y.position());
+        assertEquals(0, uPlane.position());
+        assertEquals(0, vPlane.position());
+    }
+
+    @Test
+    public void rejectsTooSmallOutput() {
+        try {
+            new YuvConverter(1).convertNV21(new byte[WIDTH * HEIGHT * 3 / 2], WIDTH, HEIGHT, 1, 90,
+                new int[WIDTH * HEIGHT - 1]);
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private void convertPlanes(String layout, ByteBuffer y, int yStride, ByteBuffer uPlane, ByteBuffer vPlane,
+                               int uvStride, int uvPixelStride) {
+        for (int threads : new int[]{1, 3}) {
+            YuvConverter converter = new YuvConverter(threads);
+            for (int rotation : ROTATIONS) {
+                for (int scale : SCALES) {
+                    int[] out = output(scale, rotation);
+                    converter.convertYuv420(y, yStride, uPlane, vPlane, uvStride, uvPixelStride,
+                        WIDTH, HEIGHT, scale, rotation, out);
+                    check(layout, scale, rotation, out);
+                }
+            }
+            converter.release();
+        }
+    }
+
+    private static int[] output(int scale, int rotation) {
+        return new int[YuvConverter.outputWidth(WIDTH, HEIGHT, scale, rotation)
+            * YuvConverter.outputHeight(WIDTH, HEIGHT, scale, rotation)];
+    }
+
+    /**
+     * Every output pixel has to be the colour of the top left source pixel of
+     * the block it was scaled from, once rotated back.
+     */
+    private void check(String layout, int scale, int rotation, int[] out) {
+        int scaledWidth = WIDTH / scale, scaledHeight = HEIGHT / scale;
+        int outWidth = YuvConverter.outputWidth(WIDTH, HEIGHT, scale, rotation);
+        int outHeight = YuvConverter.outputHeight(WIDTH, HEIGHT, scale, rotation);
+        assertEquals(rotation % 180 == 0 ? scaledWidth : scaledHeight, outWidth);
+
+        for (int oy = 0; oy < outHeight; ++oy) {
+            for (int ox = 0; ox < outWidth; ++ox) {
+                // clockwise rotation: output row oy is source column oy at 90 degrees, and so on
+                int x, y;
+                if (rotation == 90) {
+                    x = oy;
+                    y = scaledHeight - 1 - ox;
+                } else if (rotation == 180) {
+                    x = scaledWidth - 1 - ox;
+                    y = scaledHeight - 1 - oy;
+                } else if (rotation == 270) {
+                    x = scaledWidth - 1 - oy;
+                    y = ox;
+                } else {
+                    x = ox;
+                    y = oy;
+                }
+                int expected = reference(x * scale, y * scale);
+                int actual = out[oy * outWidth + ox];
+                String where = layout + " scale " + scale + " rotation " + rotation + " at " + ox + "," + oy;
+                assertEquals(where, 0xff, actual >>> 24);
+                for (int shift = 0; shift <= 16; shift += 8) {
+                    int difference = Math.abs(((expected >> shift) & 0xff) - ((actual >> shift) & 0xff));
+                    assertTrue(where + ": expected " + Integer.toHexString(expected) + " but was "
+                        + Integer.toHexString(actual), difference <= TOLERANCE);
+                }
+            }
+        }
+    }
+
+    private int reference(int x, int y) {
+        float luminance = 1.164f * ((luma[y * WIDTH + x] & 0xff) - 16);
+        int chroma = (y / 2) * (WIDTH / 2) + x / 2;
+        float cb = (u[chroma] & 0xff) - 128, cr = (v[chroma] & 0xff) - 128;
+        int r = clamp(luminance + 1.596f * cr);
+        int g = clamp(luminance - 0.813f * cr - 0.391f * cb);
+        int b = clamp(luminance + 2.018f * cb);
+        return 0xff000000 | (r << 16) | (g << 8) | b;
+    }
+
+    private static int clamp(float value) {
+        return Math.max(0, Math.min(255, (int) Math.floor(value)));
+    }
+
+    private byte[] randomPlane(int size) {
+        byte[] plane = new byte[size];
+        random.nextBytes(plane);
+        return plane;
+    }
+
+    /**
+     * A buffer for planes with padding, which is filled with a fixed value so
+     * that reading it instead of plane data gives the wrong colour.
+     */
+    private static byte[] filler(int size) {
+        byte[] bytes = new byte[size];
+        Arrays.fill(bytes, (byte) 0x5a);
+        return bytes;
+    }
+
+    private static void copyPlane(byte[] plane, int width, int height, byte[] to, int offset, int rowStride,
+                                  int pixelStride) {
+        for (int row = 0; row < height; ++row) {
+            for (int column = 0; column < width; ++column) {
+                to[offset + row * rowStride + column * pixelStride] = plane[row * width + column];
+            }
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(offset);
+        return duplicate.slice();
+    }
+}
@@ -77,6 +77,11 @@ class QrCameraState extends State<QrCamera> with WidgetsBindingObserver {
 
   @override
   void didChangeAppLifecycleState(AppLifecycleState state) {
+    // On Android the plugin pauses and resumes the camera itself, keeping the
+    // detector warm, so there's no need to stop and restart it from here.
+    if (Platform.isAndroid) {
+      return;
+    }
     if (state == AppLifecycleState.resumed) {
       resume();
     } else {
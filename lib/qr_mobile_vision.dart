@@ -1,4 +1,7 @@
 import 'dart:async';
+import 'dart:typed_data';
+
+import 'dart:ui' show Rect;
 
 import 'package:flutter/foundation.dart';
 import 'package:flutter/services.dart';
@@ -12,6 +15,111 @@ class PreviewDetails {
   PreviewDetails(this.width, this.height, this.orientation, this.textureId);
 }
 
+class SessionDetails {
+  final int sessionId;
+  final PreviewDetails preview;
+
+  SessionDetails(this.sessionId, this.preview);
+}
+
+/// What happens to the camera once a scan with a scanTarget is complete.
+/// [suspend] releases it until [QrMobileVision.restartScan]; [stop] stops the
+/// reader as [QrMobileVision.stop] would.
+enum ScanTargetAction { keepRunning, suspend, stop }
+
+/// Android camera API frames come from. [auto] picks by the camera's hardware
+/// level, or by an earlier benchmark on the same device.
+enum CameraBackend { auto, camera1, camera2 }
+
+/// Characters a [ContentFilter] allows in a value.
+enum ValueCharset { any, numeric, alphanumeric, hex }
+
+/// Constraints a decoded value has to meet to be passed on at all. Values
+/// that fail are dropped on the native side, before they are deduplicated,
+/// tracked or sent over the platform channel. Every constraint given has to hold.
+class ContentFilter {
+  /// The value has to start with one of these.
+  final List<String> prefixes;
+  final int minLength;
+  final int maxLength;
+  final ValueCharset charset;
+
+  /// Regular expression the whole value has to match, in Java syntax. It is
+  /// compiled once when scanning starts, which fails with INVALID_ARGUMENT if
+  /// it isn't valid.
+  final String pattern;
+
+  /// The value has to be a GTIN (EAN-8, UPC-A/E, EAN-13 or GTIN-14), or a GS1
+  /// element string starting with one as application identifier 01, with a
+  /// valid check digit.
+  final bool gs1Checksum;
+
+  const ContentFilter({
+    this.prefixes,
+    this.minLength = 0,
+    this.maxLength = 0,
+    this.charset = ValueCharset.any,
+    this.pattern,
+    this.gs1Checksum = false,
+  });
+
+  Map<String, dynamic> _toMap() => {
+        'prefixes': prefixes,
+        'minLength': minLength,
+        'maxLength': maxLength,
+        'charset': charset == ValueCharset.any ? null : charset.toString().split('.')[1],
+        'pattern': pattern,
+        'gs1Checksum': gs1Checksum,
+      };
+}
+
+/// State of the running reader, from [QrMobileVision.getStats].
+class ScannerStats {
+  /// How far scanning has been stepped down because memory is short or the
+  /// device is hot: 0 is normal, 1 caps frame rate and workers, 2 also halves
+  /// the resolution frames are decoded at.
+  final int resourceTier;
+  final int workers;
+  final double decodeMillis;
+  final double frameIntervalMillis;
+
+  ScannerStats(this.resourceTier, this.workers, this.decodeMillis, this.frameIntervalMillis);
+}
+
+/// One scan read back from a journal by [QrMobileVision.readJournal].
+class JournalEntry {
+  final String value;
+  final String format;
+  final DateTime time;
+
+  /// Capture timestamp of the frame the value was read from, matching the
+  /// frame timestamps in a recording made with recordPath.
+  final int frameTimestamp;
+
+  JournalEntry(this.value, this.format, this.time, this.frameTimestamp);
+}
+
+/// Layout of a raw frame passed to [QrMobileVision.detectFrame].
+enum RawFrameFormat { nv21, yv12, luma }
+
+class DetectedBarcode {
+  final String value;
+  final String rawValue;
+  final String format;
+
+  /// Corner points as x0, y0, x1, y1, ... in frame coordinates.
+  final List<int> corners;
+
+  DetectedBarcode(this.value, this.rawValue, this.format, this.corners);
+}
+
+class FrameDetection {
+  final List<DetectedBarcode> barcodes;
+  final int latencyMicros;
+
+  FrameDetection(this.barcodes, this.latencyMicros);
+}
+
 enum BarcodeFormats {
   ALL_FORMATS,
   AZTEC,
@@ -38,11 +146,64 @@ class QrMobileVision {
   static QrChannelReader channelReader = new QrChannelReader(_channel);
 
   //Set target size before starting
+  // recordPath: Android only; every camera frame is written to this file so
+  // that it can be replayed through the decoder off-device.
+  // motion: trade image quality for short exposures and high frame rates, for
+  // codes moving past the camera (i.e. on a conveyor).
+  // sensorCrop: Android only; the camera itself crops to this window (0..1 in
+  // camera frame coordinates), so the scan area fills the frame. The preview
+  // shows the same crop. Camera1 can only zoom towards the centre.
+  // autoTorch: Android only; turn the torch on while the scene is too dark to
+  // read codes in, and off again once it's bright. Devices without a torch
+  // raise exposure instead. onLowLight is told whenever that changes.
+  // onCameraError: Android only; told if the camera couldn't be reopened when
+  // the app came back from the background.
+  // zeroCopy: Android only; decode the camera's frame buffers in place rather
+  // than copying each one first. Reads grayscale frames instead of JPEGs.
+  // skipBlurry: Android only; don't decode frames too blurry to read, judged
+  // against the sharpness of frames that did read. Needs grayscale frames,
+  // so on Camera2 devices only applies with zeroCopy.
+  // scanTarget: Android only; once this many distinct codes have been read,
+  // decoding stops and they are passed to onScanComplete together, instead of
+  // each to qrCodeHandler. scanTargetAction says what then happens to the camera.
+  // filter: Android only; codes it doesn't accept are never reported.
+  // journalPath: Android only; every code reported is also appended to this
+  // file natively, in batches, to be read back with readJournal. Each time
+  // it grows past a few MB it is rotated aside, and every rotated file is kept
+  // unless journalMaxFiles is given, in which case older ones are deleted.
+  // cameraBackend: Android only; forces the old camera API or Camera2 instead
+  // of choosing one for the device.
+  // benchmarkCameraBackend: Android only; with CameraBackend.auto, the first
+  // start on a device (and after each OS update) runs the camera through both
+  // APIs for a few seconds before the preview comes up, and the faster one
+  // is used from then on.
   static Future<PreviewDetails> start({
     @required int width,
     @required int height,
     @required QRCodeHandler qrCodeHandler,
     List<BarcodeFormats> formats = _defaultBarcodeFormats,
+    bool tracking = false,
+    TrackedQRCodeHandler trackedQrCodeHandler,
+    int tileRows = 1,
+    int tileColumns = 1,
+    double tileOverlap = 0.2,
+    int pyramidFactor = 1,
+    String recordPath,
+    bool motion = false,
+    Rect sensorCrop,
+    bool autoTorch = false,
+    LowLightHandler onLowLight,
+    CameraErrorHandler onCameraError,
+    bool zeroCopy = false,
+    bool skipBlurry = false,
+    int scanTarget = 0,
+    ScanTargetAction scanTargetAction = ScanTargetAction.keepRunning,
+    ScanCompleteHandler onScanComplete,
+    ContentFilter filter,
+    String journalPath,
+    int journalMaxFiles = 0,
+    CameraBackend cameraBackend = CameraBackend.auto,
+    bool benchmarkCameraBackend = false,
   }) async {
     final _formats = formats ?? _defaultBarcodeFormats;
     assert(_formats.length > 0);
@@ -50,8 +211,34 @@ class QrMobileVision {
     List<String> formatStrings = _formats.map((format) => format.toString().split('.')[1]).toList(growable: false);
 
     channelReader.setQrCodeHandler(qrCodeHandler);
-    var details = await _channel.invokeMethod(
-        'start', {'targetWidth': width, 'targetHeight': height, 'heartbeatTimeout': 0, 'formats': formatStrings});
+    channelReader.setTrackedQrCodeHandler(trackedQrCodeHandler);
+    channelReader.setLowLightHandler(onLowLight);
+    channelReader.setCameraErrorHandler(onCameraError);
+    channelReader.setScanCompleteHandler(onScanComplete);
+    var details = await _channel.invokeMethod('start', {
+      'targetWidth': width,
+      'targetHeight': height,
+      'heartbeatTimeout': 0,
+      'formats': formatStrings,
+      'tracking': tracking,
+      'tileRows': tileRows,
+      'tileColumns': tileColumns,
+      'tileOverlap': tileOverlap,
+      'pyramidFactor': pyramidFactor,
+      'recordPath': recordPath,
+      'motion': motion,
+      'sensorCrop': _rectToMap(sensorCrop),
+      'autoTorch': autoTorch,
+      'zeroCopy': zeroCopy,
+      'skipBlurry': skipBlurry,
+      'scanTarget': scanTarget,
+      'scanTargetAction': scanTargetAction.toString().split('.')[1],
+      'filter': filter?._toMap(),
+      'journalPath': journalPath,
+      'journalMaxFiles': journalMaxFiles,
+      'cameraBackend': cameraBackend.toString().split('.')[1],
+      'benchmarkCameraBackend': benchmarkCameraBackend,
+    });
 
     // invokeMethod returns Map<dynamic,...> in dart 2.0
     assert(details is Map<dynamic, dynamic>);
@@ -66,9 +253,177 @@ class QrMobileVision {
 
   static Future stop() {
     channelReader.setQrCodeHandler(null);
+    channelReader.setTrackedQrCodeHandler(null);
+    channelReader.sessionHandlers.clear();
+    channelReader.setLowLightHandler(null);
+    channelReader.setCameraErrorHandler(null);
+    channelReader.setScanCompleteHandler(null);
+    channelReader.sessionCompleteHandlers.clear();
     return _channel.invokeMethod('stop').catchError(print);
   }
 
+  /// Current state of the running reader, or null if it isn't running. Only
+  /// available on Android.
+  static Future<ScannerStats> getStats() async {
+    Map<dynamic, dynamic> stats = await _channel.invokeMethod('getStats');
+    if (stats == null) return null;
+    return new ScannerStats(
+        stats['resourceTier'], stats['workers'], stats['decodeMillis'], stats['frameIntervalMillis']);
+  }
+
+  /// Reads back the scans journaled to [path], including rotated files, oldest
+  /// first; only those after [since] if given. Scans the running reader still
+  /// has buffered are written out first. Only available on Android.
+  static Future<List<JournalEntry>> readJournal(String path, {DateTime since}) async {
+    List<dynamic> entries = await _channel.invokeMethod('readJournal', {
+      'path': path,
+      'since': since?.millisecondsSinceEpoch,
+    });
+    return entries
+        .map((entry) => new JournalEntry(entry['value'], entry['format'],
+            new DateTime.fromMillisecondsSinceEpoch(entry['timeMillis']), entry['frameTimestamp']))
+        .toList();
+  }
+
+  /// Starts collecting towards the scanTarget given to [start] afresh, bringing
+  /// the camera back if the last scan suspended it.
+  static Future restartScan() {
+    return _channel.invokeMethod('restartScan').catchError(print);
+  }
+
+  /// Turns the torch of the running reader on or off, taking it out of
+  /// automatic control; null hands it back to automatic control if [start]
+  /// was given autoTorch. Completes with false if the camera has no torch.
+  /// Only available on Android.
+  static Future<bool> setTorch(bool on) {
+    return _channel.invokeMethod('setTorch', {'on': on});
+  }
+
+  /// Adds another scanning session to the running reader, with its own
+  /// formats and region of interest ([roi], normalized to 0..1 in camera
+  /// frame coordinates). It shares the camera and its preview texture with
+  /// [start], so it costs no extra camera frames or copies; only decoding is
+  /// done per session. The returned [SessionDetails.sessionId] identifies it
+  /// to [removeSession]. With a [scanTarget], the session removes itself
+  /// once it has read that many distinct codes, and passes them to
+  /// [onScanComplete]. Only available on Android.
+  static Future<SessionDetails> addSession({
+    @required TrackedQRCodeHandler qrCodeHandler,
+    List<BarcodeFormats> formats = _defaultBarcodeFormats,
+    Rect roi,
+    bool tracking = false,
+    int pyramidFactor = 1,
+    int scanTarget = 0,
+    ScanCompleteHandler onScanComplete,
+    ContentFilter filter,
+  }) async {
+    final _formats = formats ?? _defaultBarcodeFormats;
+    List<String> formatStrings = _formats.map((format) => format.toString().split('.')[1]).toList(growable: false);
+
+    var details = await _channel.invokeMethod('addSession', {
+      'formats': formatStrings,
+      'tracking': tracking,
+      'pyramidFactor': pyramidFactor,
+      'roi': _rectToMap(roi),
+      'scanTarget': scanTarget,
+      'filter': filter?._toMap(),
+    });
+
+    int sessionId = details["sessionId"];
+    channelReader.setSessionHandler(sessionId, qrCodeHandler);
+    if (onScanComplete != null) {
+      channelReader.sessionCompleteHandlers[sessionId] = onScanComplete;
+    }
+    return new SessionDetails(
+      sessionId,
+      new PreviewDetails(
+          details["surfaceWidth"], details["surfaceHeight"], details["surfaceOrientation"], details["textureId"]),
+    );
+  }
+
+  static Map<String, double> _rectToMap(Rect rect) {
+    if (rect == null) return null;
+    return {'left': rect.left, 'top': rect.top, 'right': rect.right, 'bottom': rect.bottom};
+  }
+
+  static Future removeSession(int sessionId) {
+    channelReader.setSessionHandler(sessionId, null);
+    channelReader.sessionCompleteHandlers.remove(sessionId);
+    return _channel.invokeMethod('removeSession', {'sessionId': sessionId}).catchError(print);
+  }
+
+  /// Builds and warms up the native detector ahead of [start] so that the
+  /// first scan doesn't pay for loading it. Only has an effect on Android.
+  static Future prewarm({List<BarcodeFormats> formats = _defaultBarcodeFormats}) {
+    final _formats = formats ?? _defaultBarcodeFormats;
+    List<String> formatStrings = _formats.map((format) => format.toString().split('.')[1]).toList(growable: false);
+    return _channel.invokeMethod('prewarm', {'formats': formatStrings}).catchError(print);
+  }
+
+  /// Decodes a batch of still images, given as file paths or encoded image
+  /// bytes ([Uint8List]). [onImageDecoded] is called for each image as soon
+  /// as it is done, in whatever order they finish. The returned future
+  /// completes with the number of images once all of them are done.
+  /// Only available on Android.
+  static Future<int> decodeImages(
+    List<dynamic> images, {
+    List<BarcodeFormats> formats = _defaultBarcodeFormats,
+    @required ImageDecodedHandler onImageDecoded,
+  }) async {
+    final _formats = formats ?? _defaultBarcodeFormats;
+    List<String> formatStrings = _formats.map((format) => format.toString().split('.')[1]).toList(growable: false);
+
+    int batchId = _nextBatchId++;
+    channelReader.setImageDecodedHandler(batchId, onImageDecoded);
+    try {
+      return await _channel.invokeMethod('decodeImages', {
+        'batchId': batchId,
+        'images': images,
+        'formats': formatStrings,
+      });
+    } finally {
+      channelReader.setImageDecodedHandler(batchId, null);
+    }
+  }
+
+  static int _nextBatchId = 0;
+
+  /// Runs the detector on a raw frame from some other source, i.e. another
+  /// camera stack or a video decoder. [stride] is the row stride of the luma
+  /// plane and defaults to [width]; [rotation] is in degrees, one of 0, 90,
+  /// 180 or 270.
+  /// Only available on Android.
+  static Future<FrameDetection> detectFrame(
+    Uint8List bytes, {
+    @required RawFrameFormat format,
+    @required int width,
+    @required int height,
+    int stride,
+    int rotation = 0,
+    List<BarcodeFormats> formats = _defaultBarcodeFormats,
+  }) async {
+    final _formats = formats ?? _defaultBarcodeFormats;
+    List<String> formatStrings = _formats.map((format) => format.toString().split('.')[1]).toList(growable: false);
+
+    var response = await _channel.invokeMethod('detectFrame', {
+      'bytes': bytes,
+      'format': format.toString().split('.')[1],
+      'width': width,
+      'height': height,
+      'stride': stride ?? width,
+      'rotation': rotation,
+      'formats': formatStrings,
+    });
+
+    List<dynamic> barcodes = response['barcodes'];
+    return new FrameDetection(
+      barcodes
+          .map((b) => new DetectedBarcode(b['value'], b['rawValue'], b['format'], (b['corners'] as List).cast<int>()))
+          .toList(growable: false),
+      response['latencyMicros'],
+    );
+  }
+
   static Future heartbeat() {
     return _channel.invokeMethod('heartbeat').catchError(print);
   }
@@ -82,6 +437,26 @@ enum FrameRotation { none, ninetyCC, oneeighty, twoseventyCC }
 
 typedef void QRCodeHandler(String qr);
 
+/// Receives codes read in tracking mode along with an id that stays the same
+/// for as long as the code stays in view.
+typedef void TrackedQRCodeHandler(String qr, int trackId);
+
+/// Receives the result of one image from [QrMobileVision.decodeImages].
+/// [values] is null if the image couldn't be read, in which case [error] says why.
+typedef void ImageDecodedHandler(int index, List<String> values, String error);
+
+/// Told when automatic torch control decides the scene has become too dark
+/// ([lowLight]) or bright again, and whether the torch is now on.
+typedef void LowLightHandler(bool lowLight, bool torchOn);
+
+/// Told when the camera couldn't be reopened as the app came back to the
+/// foreground. Reading has stopped; [QrMobileVision.stop] still has to be called.
+typedef void CameraErrorHandler(String message);
+
+/// Receives the distinct codes read by a scan with a scanTarget, in the order
+/// they were first read.
+typedef void ScanCompleteHandler(List<String> values);
+
 class QrChannelReader {
   QrChannelReader(this.channel) {
     channel.setMethodCallHandler((MethodCall call) async {
@@ -92,6 +467,53 @@ class QrChannelReader {
             qrCodeHandler(call.arguments);
           }
           break;
+        case 'qrReadTracked':
+          String data = call.arguments['data'];
+          if (qrCodeHandler != null) {
+            qrCodeHandler(data);
+          }
+          if (trackedQrCodeHandler != null) {
+            trackedQrCodeHandler(data, call.arguments['trackId']);
+          }
+          break;
+        case 'qrReadSession':
+          TrackedQRCodeHandler handler = sessionHandlers[call.arguments['sessionId']];
+          if (handler != null) {
+            handler(call.arguments['data'], call.arguments['trackId']);
+          }
+          break;
+        case 'scanComplete':
+          if (scanCompleteHandler != null) {
+            List<dynamic> values = call.arguments;
+            scanCompleteHandler(values.cast<String>());
+          }
+          break;
+        case 'scanCompleteSession':
+          int sessionId = call.arguments['sessionId'];
+          ScanCompleteHandler handler = sessionCompleteHandlers.remove(sessionId);
+          sessionHandlers.remove(sessionId);
+          if (handler != null) {
+            List<dynamic> values = call.arguments['values'];
+            handler(values.cast<String>());
+          }
+          break;
+        case 'lowLight':
+          if (lowLightHandler != null) {
+            lowLightHandler(call.arguments['lowLight'], call.arguments['torch']);
+          }
+          break;
+        case 'cameraError':
+          if (cameraErrorHandler != null) {
+            cameraErrorHandler(call.arguments);
+          }
+          break;
+        case 'imageDecoded':
+          ImageDecodedHandler handler = imageDecodedHandlers[call.arguments['batchId']];
+          if (handler != null) {
+            List<dynamic> values = call.arguments['values'];
+            handler(call.arguments['index'], values?.cast<String>(), call.arguments['error']);
+          }
+          break;
         default:
           print("QrChannelHandler: unknown method call received at "
               "${call.method}");
@@ -103,6 +525,45 @@ class QrChannelReader {
     this.qrCodeHandler = qrch;
   }
 
+  void setTrackedQrCodeHandler(TrackedQRCodeHandler handler) {
+    this.trackedQrCodeHandler = handler;
+  }
+
+  void setScanCompleteHandler(ScanCompleteHandler handler) {
+    this.scanCompleteHandler = handler;
+  }
+
+  void setLowLightHandler(LowLightHandler handler) {
+    this.lowLightHandler = handler;
+  }
+
+  void setCameraErrorHandler(CameraErrorHandler handler) {
+    this.cameraErrorHandler = handler;
+  }
+
+  void setSessionHandler(int sessionId, TrackedQRCodeHandler handler) {
+    if (handler == null) {
+      sessionHandlers.remove(sessionId);
+    } else {
+      sessionHandlers[sessionId] = handler;
+    }
+  }
+
+  void setImageDecodedHandler(int batchId, ImageDecodedHandler handler) {
+    if (handler == null) {
+      imageDecodedHandlers.remove(batchId);
+    } else {
+      imageDecodedHandlers[batchId] = handler;
+    }
+  }
+
   MethodChannel channel;
   QRCodeHandler qrCodeHandler;
+  final Map<int, ImageDecodedHandler> imageDecodedHandlers = {};
+  final Map<int, TrackedQRCodeHandler> sessionHandlers = {};
+  TrackedQRCodeHandler trackedQrCodeHandler;
+  LowLightHandler lowLightHandler;
+  CameraErrorHandler cameraErrorHandler;
+  ScanCompleteHandler scanCompleteHandler;
+  final Map<int, ScanCompleteHandler> sessionCompleteHandlers = {};
 }